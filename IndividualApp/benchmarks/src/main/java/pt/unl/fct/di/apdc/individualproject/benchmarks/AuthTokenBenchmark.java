@@ -0,0 +1,56 @@
+package pt.unl.fct.di.apdc.individualproject.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.unl.fct.di.apdc.individualproject.util.AuthToken;
+import pt.unl.fct.di.apdc.individualproject.util.UserData;
+
+/**
+ * Token creation at login, which is dominated by UUID.randomUUID and its
+ * SecureRandom, and the expiration check every authenticated request makes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthTokenBenchmark {
+
+	private AuthToken valid;
+	private AuthToken expired;
+
+	@Setup
+	public void setup() {
+		valid = new AuthToken("user", UserData.USER);
+		expired = new AuthToken("user", UserData.USER);
+		expired.expirationData = expired.creationData - 1;
+	}
+
+	@Benchmark
+	public AuthToken create() {
+		return new AuthToken("user", UserData.USER);
+	}
+
+	@Benchmark
+	public boolean isValid() {
+		return valid.isValid(valid.expirationData);
+	}
+
+	@Benchmark
+	public boolean isValidExpired() {
+		return expired.isValid(expired.expirationData);
+	}
+
+}
@@ -0,0 +1,78 @@
+package pt.unl.fct.di.apdc.individualproject.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.appengine.repackaged.org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * The legacy password hash, DigestUtils.sha512Hex, against the same digest
+ * done directly with MessageDigest, SHA-256, and the PBKDF2 scheme
+ * PasswordHasher uses for new hashes at a few iteration counts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashBenchmark {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final byte[] SALT = new byte[16];
+
+	@State(Scope.Benchmark)
+	public static class Pbkdf2 {
+		@Param({ "1000", "10000" })
+		public int iterations;
+	}
+
+	private final String password = "correct horse battery staple";
+
+	@Benchmark
+	public String sha512HexDigestUtils() {
+		return DigestUtils.sha512Hex(password);
+	}
+
+	@Benchmark
+	public String sha512HexMessageDigest() throws GeneralSecurityException {
+		return hex(MessageDigest.getInstance("SHA-512").digest(password.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Benchmark
+	public String sha256HexMessageDigest() throws GeneralSecurityException {
+		return hex(MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Benchmark
+	public byte[] pbkdf2Sha256(Pbkdf2 pbkdf2) throws GeneralSecurityException {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), SALT, pbkdf2.iterations, 256);
+		return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+	}
+
+	private static String hex(byte[] bytes) {
+		char[] out = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			out[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			out[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(out);
+	}
+
+}
@@ -0,0 +1,59 @@
+package pt.unl.fct.di.apdc.individualproject.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import pt.unl.fct.di.apdc.individualproject.util.UserData;
+
+/**
+ * UserData.validStateChange and the staff role check the resources repeat
+ * inline, over every pair of roles. The role strings are copies, as they are
+ * when they come from a request body or an entity, so equals has to compare
+ * the characters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoleBenchmark {
+
+	private static final String[] ROLES = { UserData.USER, UserData.BACKOFFICE, UserData.BACKEND, UserData.SUPER };
+
+	private UserData data;
+	private String[] roles;
+
+	@Setup
+	public void setup() {
+		data = new UserData();
+		roles = new String[ROLES.length];
+		for(int i = 0; i < ROLES.length; i++)
+			roles[i] = new String(ROLES[i]);
+	}
+
+	@Benchmark
+	public void validStateChange(Blackhole bh) {
+		for(String changer : roles)
+			for(String toChange : roles)
+				bh.consume(data.validStateChange(changer, toChange));
+	}
+
+	@Benchmark
+	public void isStaff(Blackhole bh) {
+		for(String role : roles)
+			bh.consume(role.equals(UserData.BACKOFFICE) || role.equals(UserData.BACKEND) || role.equals(UserData.SUPER));
+	}
+
+}
@@ -0,0 +1,150 @@
+package pt.unl.fct.di.apdc.individualproject.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.Gson;
+
+import pt.unl.fct.di.apdc.individualproject.util.AuthToken;
+import pt.unl.fct.di.apdc.individualproject.util.JsonMapper;
+import pt.unl.fct.di.apdc.individualproject.util.UserAttributes;
+import pt.unl.fct.di.apdc.individualproject.util.UserData;
+
+/**
+ * Gson, as the resources used it to build a String first, against the
+ * shared Jackson mapper writing to the response stream. The payloads are the
+ * token returned by login, the attributes returned by /user/attribute and a
+ * full UserData request body.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+	private final Gson gson = new Gson();
+	private final ObjectMapper mapper = JsonMapper.get();
+
+	private AuthToken token;
+	private UserAttributes attributes;
+	private String userJson;
+	private OutputStream out;
+	private long written;
+
+	@Setup
+	public void setup() throws IOException {
+		token = new AuthToken("user", UserData.USER);
+		token.signature = "c2lnbmF0dXJlLWJ5dGVzLWZvci10aGUtdG9rZW4tYmVuY2htYXJr";
+
+		attributes = new UserAttributes();
+		attributes.username = "user";
+		attributes.email = "user@example.com";
+		attributes.creation_timestamp = "2021-03-01T10:00:00Z";
+		attributes.profile = UserData.PUBLIC;
+		attributes.role = UserData.USER;
+		attributes.state = UserData.ENABLED;
+		attributes.landline = "212345678";
+		attributes.mobilePhone = "912345678";
+		attributes.address = "Rua da Universidade, 1";
+		attributes.complementAddress = "2829-516";
+		attributes.locality = "Caparica";
+
+		UserData data = new UserData();
+		data.username = attributes.username;
+		data.email = attributes.email;
+		data.password = "password";
+		data.confirmation = "password";
+		data.profile = attributes.profile;
+		data.landline = attributes.landline;
+		data.mobilePhone = attributes.mobilePhone;
+		data.address = attributes.address;
+		data.complementAddress = attributes.complementAddress;
+		data.locality = attributes.locality;
+		data.at = token;
+		userJson = mapper.writeValueAsString(data);
+
+		out = new OutputStream() {
+			@Override
+			public void write(int b) {
+				written++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				written += len;
+			}
+		};
+	}
+
+	@Benchmark
+	public String tokenGson() {
+		return gson.toJson(token);
+	}
+
+	@Benchmark
+	public void tokenGsonStream() throws IOException {
+		OutputStreamWriter writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		writer.write(gson.toJson(token));
+		writer.flush();
+	}
+
+	@Benchmark
+	public String tokenJackson() throws IOException {
+		return mapper.writeValueAsString(token);
+	}
+
+	@Benchmark
+	public void tokenJacksonStream() throws IOException {
+		mapper.writeValue(out, token);
+	}
+
+	@Benchmark
+	public String attributesGson() {
+		return gson.toJson(attributes);
+	}
+
+	@Benchmark
+	public void attributesGsonStream() throws IOException {
+		OutputStreamWriter writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		writer.write(gson.toJson(attributes));
+		writer.flush();
+	}
+
+	@Benchmark
+	public String attributesJackson() throws IOException {
+		return mapper.writeValueAsString(attributes);
+	}
+
+	@Benchmark
+	public void attributesJacksonStream() throws IOException {
+		mapper.writeValue(out, attributes);
+	}
+
+	@Benchmark
+	public UserData userDataGsonRead() {
+		return gson.fromJson(userJson, UserData.class);
+	}
+
+	@Benchmark
+	public UserData userDataJacksonRead() throws IOException {
+		return mapper.readValue(userJson, UserData.class);
+	}
+
+}
@@ -0,0 +1,177 @@
+package pt.unl.fct.di.apdc.individualproject.loadtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.security.HashLoginService;
+import org.eclipse.jetty.security.UserStore;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+
+import pt.unl.fct.di.apdc.individualproject.util.AdmissionControl;
+import pt.unl.fct.di.apdc.individualproject.util.AuditLog;
+import pt.unl.fct.di.apdc.individualproject.util.LoginThrottle;
+import pt.unl.fct.di.apdc.individualproject.util.Storage;
+import pt.unl.fct.di.apdc.individualproject.util.TransactionRunner;
+
+/**
+ * Boots the application from its web.xml in an embedded Jetty, drives it
+ * with concurrent virtual users for a fixed time and writes the results as
+ * JSON. Options, all optional:
+ * <ul>
+ * <li>-users: virtual users (50)</li>
+ * <li>-duration / -warmup: seconds measured, and run before measuring (60 / 10)</li>
+ * <li>-mix: operation weights (see {@link Mix#DEFAULT})</li>
+ * <li>-think: milliseconds each user waits between requests (0)</li>
+ * <li>-role: role registered users are given, U/GBO/GA/SU (GBO)</li>
+ * <li>-datastore: memory, or host:port of a Datastore emulator started with
+ * gcloud beta emulators datastore start (memory)</li>
+ * <li>-project: project id used for the Datastore (loadtest)</li>
+ * <li>-webapp: the webapp directory (../src/webapp)</li>
+ * <li>-seed: seed for the operation picks (1)</li>
+ * <li>-out: report file (loadtest-report.json)</li>
+ * </ul>
+ * Application settings are system properties as usual. All requests come
+ * from one address, so the per-IP and per-user login limits default to
+ * values that do not get in the way unless they are set.
+ */
+public class LoadTest {
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put("users", "50");
+		options.put("duration", "60");
+		options.put("warmup", "10");
+		options.put("mix", Mix.DEFAULT);
+		options.put("think", "0");
+		options.put("role", "GBO");
+		options.put("datastore", "memory");
+		options.put("project", "loadtest");
+		options.put("webapp", "../src/webapp");
+		options.put("seed", "1");
+		options.put("out", "loadtest-report.json");
+		for(int i = 0; i < args.length; i += 2) {
+			String name = args[i].replaceFirst("^-+", "");
+			if(!options.containsKey(name) || i + 1 >= args.length)
+				throw new IllegalArgumentException("Unknown option or missing value: " + args[i] + ", options are " + options.keySet());
+			options.put(name, args[i + 1]);
+		}
+
+		int users = Integer.parseInt(options.get("users"));
+		long duration = Long.parseLong(options.get("duration")) * 1000;
+		long warmup = Long.parseLong(options.get("warmup")) * 1000;
+		Mix mix = new Mix(options.get("mix"));
+
+		setDefault(LoginThrottle.IP_CAPACITY, "1000000");
+		setDefault(LoginThrottle.USER_CAPACITY, "1000");
+
+		MemoryDatastore memory = null;
+		Datastore datastore;
+		if(options.get("datastore").equals("memory")) {
+			memory = new MemoryDatastore(options.get("project"));
+			datastore = memory.getClient();
+		} else {
+			datastore = DatastoreOptions.newBuilder()
+					.setHost(options.get("datastore"))
+					.setProjectId(options.get("project"))
+					.setCredentials(NoCredentials.getInstance())
+					.build().getService();
+		}
+		Storage.use(datastore);
+
+		Server server = startServer(options.get("webapp"));
+		String baseUrl = baseUrl(server);
+
+		HttpClient http = new HttpClient();
+		http.setMaxConnectionsPerDestination(users);
+		http.setMaxRequestsQueuedPerDestination(users * 2);
+		http.start();
+
+		Report report = new Report();
+		List<String> usernames = Collections.synchronizedList(new ArrayList<>());
+		long start = System.currentTimeMillis();
+		long warmupEnd = start + warmup;
+		long end = warmupEnd + duration;
+		List<Thread> threads = new ArrayList<>();
+		for(int i = 0; i < users; i++) {
+			Thread thread = new Thread(new VirtualUser(i, baseUrl, http, mix, report, usernames, options.get("role"),
+					warmupEnd, end, Long.parseLong(options.get("think")), Long.parseLong(options.get("seed"))), "vu-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads)
+			thread.join();
+		double seconds = (System.currentTimeMillis() - warmupEnd) / 1000.0;
+
+		Map<String, Object> config = new LinkedHashMap<>(options);
+		config.put("mix", mix.getWeights());
+		config.put(LoginThrottle.IP_CAPACITY, System.getProperty(LoginThrottle.IP_CAPACITY));
+		config.put(LoginThrottle.USER_CAPACITY, System.getProperty(LoginThrottle.USER_CAPACITY));
+
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("transactionRetries", TransactionRunner.getInstance().getRetries());
+		stats.put("transactionsGivenUp", TransactionRunner.getInstance().getGivenUp());
+		AuditLog audit = AuditLog.getInstance();
+		audit.flush();
+		stats.put("auditWritten", audit.getWritten());
+		stats.put("auditDropped", audit.getDropped());
+		stats.put("auditFlushMaxMillis", audit.getFlushLatency().getMaxMicros() / 1000.0);
+		for(AdmissionControl.Limiter limiter : AdmissionControl.getInstance().getLimiters()) {
+			stats.put("admission." + limiter.getName() + ".limit", limiter.getLimit());
+			stats.put("admission." + limiter.getName() + ".rejected", limiter.getRejected());
+		}
+		if(memory != null) {
+			stats.put("datastoreCommits", memory.getCommits());
+			stats.put("datastoreAborted", memory.getAborted());
+			stats.put("datastoreEntities", memory.size());
+		}
+
+		File out = new File(options.get("out"));
+		report.write(out, config, stats, seconds);
+		System.out.println("Report written to " + out.getAbsolutePath());
+
+		http.stop();
+		server.stop();
+	}
+
+	/**
+	 * Starts the application from the given webapp directory on a free port,
+	 * using the Datastore set with Storage.use.
+	 */
+	public static Server startServer(String webappDir) throws Exception {
+		Server server = new Server(0);
+		WebAppContext webapp = new WebAppContext();
+		webapp.setContextPath("/");
+		webapp.setResourceBase(webappDir);
+		webapp.setDescriptor(new File(webappDir, "WEB-INF/web.xml").getPath());
+		webapp.setParentLoaderPriority(true);
+		webapp.setThrowUnavailableOnStartupException(true);
+		// web.xml restricts /secret to admins, which needs some login service
+		HashLoginService logins = new HashLoginService("loadtest");
+		logins.setUserStore(new UserStore());
+		webapp.getSecurityHandler().setLoginService(logins);
+		server.setHandler(webapp);
+		server.start();
+		return server;
+	}
+
+	public static String baseUrl(Server server) {
+		return "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+	}
+
+	private static void setDefault(String property, String value) {
+		if(System.getProperty(property) == null)
+			System.setProperty(property, value);
+	}
+
+}
@@ -0,0 +1,481 @@
+package pt.unl.fct.di.apdc.individualproject.loadtest;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.datastore.Cursor;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.IncompleteKey;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.KeyQuery;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+import com.google.cloud.datastore.Value;
+import com.google.datastore.v1.QueryResultBatch.MoreResultsType;
+
+/**
+ * In-memory stand-in for the Datastore, covering the lookups, writes and
+ * transactions that the user and login resources make. Entities written with
+ * an incomplete key, like the audit log's, get the next id. Queries may have
+ * a kind, one property filter, a limit and a start cursor, and return their
+ * results in key order; they see every commit, unlike the real ones.
+ * <p>
+ * Transactions are optimistic like the real ones: every entity has a
+ * version, writes are buffered until commit, and a commit fails with
+ * ABORTED if an entity the transaction read has changed since, so the retry
+ * path of the application is exercised under load. As in
+ * InstrumentedDatastore, the clients are dynamic proxies dispatching on the
+ * method name.
+ */
+public class MemoryDatastore {
+
+	private static final Stored ABSENT = new Stored(null, 0);
+
+	private final DatastoreOptions options;
+	private final Map<Key, Stored> entities = new ConcurrentHashMap<>();
+	private final AtomicLong versions = new AtomicLong();
+	private final AtomicLong ids = new AtomicLong();
+	private final LongAdder commits = new LongAdder();
+	private final LongAdder aborted = new LongAdder();
+	private final Datastore client;
+
+	public MemoryDatastore(String projectId) {
+		this.options = DatastoreOptions.newBuilder()
+				.setProjectId(projectId)
+				.setCredentials(NoCredentials.getInstance())
+				.build();
+		this.client = (Datastore) Proxy.newProxyInstance(Datastore.class.getClassLoader(),
+				new Class<?>[] { Datastore.class }, new DatastoreHandler());
+	}
+
+	public Datastore getClient() {
+		return client;
+	}
+
+	public int size() {
+		int size = 0;
+		for(Stored stored : entities.values()) {
+			if(stored.entity != null)
+				size++;
+		}
+		return size;
+	}
+
+	public long getCommits() {
+		return commits.sum();
+	}
+
+	public long getAborted() {
+		return aborted.sum();
+	}
+
+	private Stored stored(Key key) {
+		return entities.getOrDefault(key, ABSENT);
+	}
+
+	private Key key(IncompleteKey key) {
+		return key instanceof Key ? (Key) key : Key.newBuilder(key, ids.incrementAndGet()).build();
+	}
+
+	private Entity entity(FullEntity<?> entity) {
+		return entity instanceof Entity ? (Entity) entity : Entity.newBuilder(key(entity.getKey()), entity).build();
+	}
+
+	private static List<Key> keys(Object arg) {
+		List<Key> keys = new ArrayList<>();
+		if(arg instanceof Key) {
+			keys.add((Key) arg);
+		} else if(arg instanceof Key[]) {
+			Collections.addAll(keys, (Key[]) arg);
+		} else {
+			for(Object key : (Iterable<?>) arg)
+				keys.add((Key) key);
+		}
+		return keys;
+	}
+
+	private List<Entity> entities(Object arg) {
+		List<Entity> entities = new ArrayList<>();
+		if(arg instanceof FullEntity) {
+			entities.add(entity((FullEntity<?>) arg));
+		} else {
+			for(FullEntity<?> entity : (FullEntity<?>[]) arg)
+				entities.add(entity(entity));
+		}
+		return entities;
+	}
+
+	private static Object single(Object arg, List<Entity> entities) {
+		return arg instanceof FullEntity ? entities.get(0) : entities;
+	}
+
+	private QueryResults<?> run(Query<?> query) {
+		if(!(query instanceof StructuredQuery))
+			throw unsupported("GQL");
+		StructuredQuery<?> structured = (StructuredQuery<?>) query;
+		Predicate<Entity> filter = filter(structured.getFilter());
+		List<Entity> matching = new ArrayList<>();
+		for(Stored stored : entities.values()) {
+			Entity entity = stored.entity;
+			if(entity != null && entity.getKey().getKind().equals(structured.getKind()) && filter.test(entity))
+				matching.add(entity);
+		}
+		matching.sort(Comparator.comparing(entity -> entity.getKey().toUrlSafe()));
+
+		int from = structured.getStartCursor() == null ? 0 : offset(structured.getStartCursor());
+		int to = structured.getLimit() == null ? matching.size() : Math.min(matching.size(), from + structured.getLimit());
+		List<Object> results = new ArrayList<>();
+		for(Entity entity : matching.subList(Math.min(from, to), to))
+			results.add(query instanceof KeyQuery ? entity.getKey() : entity);
+		return new Results(results, from, query instanceof KeyQuery ? Key.class : Entity.class);
+	}
+
+	/**
+	 * The client has no getters for a filter's parts, so they are read from
+	 * its fields.
+	 */
+	private static Predicate<Entity> filter(StructuredQuery.Filter filter) {
+		if(filter == null)
+			return entity -> true;
+		if(!(filter instanceof PropertyFilter))
+			throw unsupported("composite filter");
+		String property = (String) field(filter, "property");
+		String operator = field(filter, "operator").toString();
+		@SuppressWarnings("unchecked")
+		Comparable<Object> value = (Comparable<Object>) ((Value<?>) field(filter, "value")).get();
+		return entity -> {
+			if(!entity.contains(property))
+				return false;
+			int cmp = value.compareTo(entity.getValue(property).get());
+			switch(operator) {
+			case "LESS_THAN":
+				return cmp > 0;
+			case "LESS_THAN_OR_EQUAL":
+				return cmp >= 0;
+			case "GREATER_THAN":
+				return cmp < 0;
+			case "GREATER_THAN_OR_EQUAL":
+				return cmp <= 0;
+			case "EQUAL":
+				return cmp == 0;
+			default:
+				throw unsupported(operator);
+			}
+		};
+	}
+
+	private static Object field(Object target, String name) {
+		try {
+			Field field = target.getClass().getDeclaredField(name);
+			field.setAccessible(true);
+			return field.get(target);
+		} catch(ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Cursors hold the position of the next result.
+	 */
+	private static Cursor cursor(int offset) {
+		return Cursor.copyFrom(Integer.toString(offset).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static int offset(Cursor cursor) {
+		return Integer.parseInt(new String(Base64.getUrlDecoder().decode(cursor.toUrlSafe()), StandardCharsets.UTF_8));
+	}
+
+	private static DatastoreException unsupported(String name) {
+		return new DatastoreException(12, name + " is not supported by the in-memory Datastore", "UNIMPLEMENTED");
+	}
+
+	private class DatastoreHandler implements InvocationHandler {
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(method.getDeclaringClass() == Object.class) {
+				switch(name) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				default:
+					return "MemoryDatastore";
+				}
+			}
+
+			switch(name) {
+			case "get": {
+				if(args[0] instanceof Key)
+					return stored((Key) args[0]).entity;
+				List<Entity> found = new ArrayList<>();
+				for(Key key : keys(args[0])) {
+					Entity entity = stored(key).entity;
+					if(entity != null)
+						found.add(entity);
+				}
+				return found.iterator();
+			}
+			case "fetch": {
+				List<Entity> fetched = new ArrayList<>();
+				for(Key key : keys(args[0]))
+					fetched.add(stored(key).entity);
+				return fetched;
+			}
+			case "put":
+			case "add":
+			case "update": {
+				TransactionHandler txn = new TransactionHandler(client);
+				int mode = name.equals("add") ? Write.INSERT : name.equals("update") ? Write.UPDATE : Write.PUT;
+				List<Entity> written = txn.write(args[0], mode);
+				txn.commit();
+				return name.equals("update") ? null : single(args[0], written);
+			}
+			case "delete": {
+				TransactionHandler txn = new TransactionHandler(client);
+				txn.delete(args[0]);
+				txn.commit();
+				return null;
+			}
+			case "run":
+				return run((Query<?>) args[0]);
+			case "newTransaction":
+				return newTransaction();
+			case "runInTransaction": {
+				Transaction txn = newTransaction();
+				try {
+					Object result = ((Datastore.TransactionCallable<?>) args[0]).run(txn);
+					txn.commit();
+					return result;
+				} finally {
+					if(txn.isActive())
+						txn.rollback();
+				}
+			}
+			case "newKeyFactory":
+				return new KeyFactory(options.getProjectId());
+			case "getOptions":
+				return options;
+			case "close":
+				return null;
+			default:
+				throw unsupported(name);
+			}
+		}
+
+		private Transaction newTransaction() {
+			return (Transaction) Proxy.newProxyInstance(Transaction.class.getClassLoader(),
+					new Class<?>[] { Transaction.class }, new TransactionHandler(client));
+		}
+	}
+
+	private class TransactionHandler implements InvocationHandler {
+		private final Datastore datastore;
+		private final Map<Key, Long> read = new HashMap<>();
+		private final Map<Key, Write> writes = new LinkedHashMap<>();
+		private boolean active = true;
+
+		TransactionHandler(Datastore datastore) {
+			this.datastore = datastore;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(method.getDeclaringClass() == Object.class) {
+				switch(name) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				default:
+					return "MemoryTransaction";
+				}
+			}
+			if(name.equals("isActive"))
+				return active;
+			if(name.equals("getDatastore"))
+				return datastore;
+			if(!active)
+				throw new DatastoreException(3, "The transaction is no longer active", "INVALID_ARGUMENT");
+
+			switch(name) {
+			case "get": {
+				if(args[0] instanceof Key)
+					return read((Key) args[0]);
+				List<Entity> found = new ArrayList<>();
+				for(Key key : keys(args[0])) {
+					Entity entity = read(key);
+					if(entity != null)
+						found.add(entity);
+				}
+				return found.iterator();
+			}
+			case "fetch": {
+				List<Entity> fetched = new ArrayList<>();
+				for(Key key : keys(args[0]))
+					fetched.add(read(key));
+				return fetched;
+			}
+			case "put":
+				return single(args[0], write(args[0], Write.PUT));
+			case "add":
+				return single(args[0], write(args[0], Write.INSERT));
+			case "update":
+				write(args[0], Write.UPDATE);
+				return null;
+			case "delete":
+				delete(args[0]);
+				return null;
+			case "commit":
+				commit();
+				return (Transaction.Response) Collections::emptyList;
+			case "rollback":
+				active = false;
+				return null;
+			default:
+				throw unsupported(name);
+			}
+		}
+
+		private Entity read(Key key) {
+			Stored stored = stored(key);
+			read.putIfAbsent(key, stored.version);
+			return stored.entity;
+		}
+
+		private List<Entity> write(Object arg, int mode) {
+			List<Entity> written = entities(arg);
+			for(Entity entity : written)
+				writes.put(entity.getKey(), new Write(entity.getKey(), entity, mode));
+			return written;
+		}
+
+		private void delete(Object arg) {
+			for(Key key : keys(arg))
+				writes.put(key, new Write(key, null, Write.PUT));
+		}
+
+		private void commit() {
+			active = false;
+			synchronized(entities) {
+				for(Map.Entry<Key, Long> entry : read.entrySet()) {
+					if(stored(entry.getKey()).version != entry.getValue()) {
+						aborted.increment();
+						throw new DatastoreException(10, "too much contention on these datastore entities. please try again.", "ABORTED");
+					}
+				}
+				for(Write write : writes.values()) {
+					boolean exists = stored(write.key).entity != null;
+					if(write.mode == Write.INSERT && exists)
+						throw new DatastoreException(3, "entity already exists: " + write.key, "INVALID_ARGUMENT");
+					if(write.mode == Write.UPDATE && !exists)
+						throw new DatastoreException(3, "no entity to update: " + write.key, "INVALID_ARGUMENT");
+				}
+				for(Write write : writes.values())
+					entities.put(write.key, new Stored(write.entity, versions.incrementAndGet()));
+			}
+			commits.increment();
+		}
+	}
+
+	private static class Results implements QueryResults<Object> {
+		private final Iterator<Object> results;
+		private final Class<?> resultClass;
+		private int next;
+
+		Results(List<Object> results, int from, Class<?> resultClass) {
+			this.results = results.iterator();
+			this.resultClass = resultClass;
+			this.next = from;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return results.hasNext();
+		}
+
+		@Override
+		public Object next() {
+			Object result = results.next();
+			next++;
+			return result;
+		}
+
+		@Override
+		public Class<?> getResultClass() {
+			return resultClass;
+		}
+
+		@Override
+		public Cursor getCursorAfter() {
+			return cursor(next);
+		}
+
+		@Override
+		public int getSkippedResults() {
+			return 0;
+		}
+
+		@Override
+		public MoreResultsType getMoreResults() {
+			return results.hasNext() ? MoreResultsType.NOT_FINISHED : MoreResultsType.MORE_RESULTS_AFTER_LIMIT;
+		}
+	}
+
+	/**
+	 * A committed entity, or a deleted or missing one when entity is null.
+	 */
+	private static class Stored {
+		final Entity entity;
+		final long version;
+
+		Stored(Entity entity, long version) {
+			this.entity = entity;
+			this.version = version;
+		}
+	}
+
+	private static class Write {
+		static final int PUT = 0;
+		static final int INSERT = 1;
+		static final int UPDATE = 2;
+
+		final Key key;
+		final Entity entity;
+		final int mode;
+
+		Write(Key key, Entity entity, int mode) {
+			this.key = key;
+			this.entity = entity;
+			this.mode = mode;
+		}
+	}
+
+}
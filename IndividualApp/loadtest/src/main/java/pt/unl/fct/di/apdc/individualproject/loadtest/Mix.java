@@ -0,0 +1,70 @@
+package pt.unl.fct.di.apdc.individualproject.loadtest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Relative weights of the operations virtual users pick from, parsed from a
+ * spec like register=1,login=2,modify=4,attribute=4,logout=2. Operations
+ * left out of the spec are not picked.
+ */
+public class Mix {
+
+	public static final String REGISTER = "register";
+	public static final String LOGIN = "login";
+	public static final String MODIFY = "modify";
+	public static final String ATTRIBUTE = "attribute";
+	public static final String ATTRIBUTES = "attributes";
+	public static final String LOGOUT = "logout";
+
+	public static final String DEFAULT = "register=1,login=2,modify=4,attribute=4,logout=2";
+
+	private static final String[] OPERATIONS = { REGISTER, LOGIN, MODIFY, ATTRIBUTE, ATTRIBUTES, LOGOUT };
+
+	private final Map<String, Integer> weights = new LinkedHashMap<>();
+	private final String[] picks;
+	private final int[] cumulative;
+	private final int total;
+
+	public Mix(String spec) {
+		for(String operation : OPERATIONS)
+			weights.put(operation, 0);
+		for(String part : spec.split(",")) {
+			String[] pair = part.trim().split("=");
+			if(pair.length != 2 || !weights.containsKey(pair[0].trim()))
+				throw new IllegalArgumentException("Bad mix entry '" + part + "', expected one of " + weights.keySet() + "=weight");
+			int weight = Integer.parseInt(pair[1].trim());
+			if(weight < 0)
+				throw new IllegalArgumentException("Negative weight for " + pair[0]);
+			weights.put(pair[0].trim(), weight);
+		}
+
+		picks = new String[OPERATIONS.length];
+		cumulative = new int[OPERATIONS.length];
+		int sum = 0;
+		int i = 0;
+		for(Map.Entry<String, Integer> entry : weights.entrySet()) {
+			sum += entry.getValue();
+			picks[i] = entry.getKey();
+			cumulative[i++] = sum;
+		}
+		if(sum == 0)
+			throw new IllegalArgumentException("The mix needs at least one operation with a positive weight");
+		total = sum;
+	}
+
+	public String pick(Random random) {
+		int r = random.nextInt(total);
+		for(int i = 0; i < cumulative.length; i++) {
+			if(r < cumulative[i])
+				return picks[i];
+		}
+		return picks[picks.length - 1];
+	}
+
+	public Map<String, Integer> getWeights() {
+		return weights;
+	}
+
+}
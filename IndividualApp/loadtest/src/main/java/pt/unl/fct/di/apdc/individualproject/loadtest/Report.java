@@ -0,0 +1,96 @@
+package pt.unl.fct.di.apdc.individualproject.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import pt.unl.fct.di.apdc.individualproject.util.LatencyHistogram;
+
+/**
+ * Results of a run, per operation: latencies of the requests completed
+ * after the warmup, and their outcomes by status code ("io" when no response
+ * came back). Anything other than a 2xx is an error. Written as JSON with a
+ * stable key order, so that two reports can be diffed.
+ */
+public class Report {
+
+	private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<>();
+	private final Operation total = new Operation();
+
+	public void record(String operation, String status, long micros) {
+		operations.computeIfAbsent(operation, name -> new Operation()).record(status, micros);
+		total.record(status, micros);
+	}
+
+	public void write(File file, Map<String, Object> config, Map<String, Object> server, double seconds) throws IOException {
+		Map<String, Object> report = new LinkedHashMap<>();
+		Map<String, Object> byOperation = new TreeMap<>();
+		for(Map.Entry<String, Operation> entry : operations.entrySet())
+			byOperation.put(entry.getKey(), entry.getValue().toMap(seconds));
+
+		report.put("config", config);
+		report.put("seconds", round(seconds));
+		report.put("total", total.toMap(seconds));
+		report.put("operations", byOperation);
+		report.put("server", server);
+
+		new ObjectMapper()
+				.enable(SerializationFeature.INDENT_OUTPUT)
+				.enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+				.writeValue(file, report);
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 1000) / 1000.0;
+	}
+
+	private static double millis(long micros) {
+		return round(micros / 1000.0);
+	}
+
+	private static class Operation {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final ConcurrentMap<String, LongAdder> statuses = new ConcurrentHashMap<>();
+		final LongAdder errors = new LongAdder();
+
+		void record(String status, long micros) {
+			latency.record(micros);
+			statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+			if(!status.startsWith("2"))
+				errors.increment();
+		}
+
+		Map<String, Object> toMap(double seconds) {
+			long count = latency.getCount();
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put("requests", count);
+			map.put("errors", errors.sum());
+			map.put("errorRate", count == 0 ? 0 : round((double) errors.sum() / count));
+			map.put("throughput", seconds == 0 ? 0 : round(count / seconds));
+
+			Map<String, Object> millis = new LinkedHashMap<>();
+			millis.put("mean", count == 0 ? 0 : millis(latency.getSumMicros() / count));
+			millis.put("p50", millis(latency.percentileMicros(0.5)));
+			millis.put("p90", millis(latency.percentileMicros(0.9)));
+			millis.put("p99", millis(latency.percentileMicros(0.99)));
+			millis.put("p999", millis(latency.percentileMicros(0.999)));
+			millis.put("max", millis(latency.getMaxMicros()));
+			map.put("latencyMillis", millis);
+
+			Map<String, Long> byStatus = new TreeMap<>();
+			for(Map.Entry<String, LongAdder> entry : statuses.entrySet())
+				byStatus.put(entry.getKey(), entry.getValue().sum());
+			map.put("statuses", byStatus);
+			return map;
+		}
+	}
+
+}
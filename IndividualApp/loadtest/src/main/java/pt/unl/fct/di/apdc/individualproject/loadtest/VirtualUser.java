@@ -0,0 +1,199 @@
+package pt.unl.fct.di.apdc.individualproject.loadtest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.http.HttpMethod;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+
+import pt.unl.fct.di.apdc.individualproject.util.Storage;
+import pt.unl.fct.di.apdc.individualproject.util.UserData;
+
+/**
+ * One simulated client, looping over operations picked from the mix until
+ * the run ends. Operations that make no sense in the current state are
+ * replaced by the one that does: nothing happens before the user is
+ * registered, token operations log in first, and logging in while logged in
+ * logs out instead. A user that fails to log in, for instance because a
+ * failed logout left its token behind, is replaced by a newly registered one.
+ * A 503 with Retry-After makes it wait that long before going on.
+ * <p>
+ * Registered users are promoted to the configured role straight in the
+ * Datastore, since only back office roles may read other users' attributes.
+ */
+public class VirtualUser implements Runnable {
+
+	private static final Logger LOG = Logger.getLogger(VirtualUser.class.getName());
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final int ATTRIBUTES_USERS = 50;
+	private static final String[] LOCALITIES = { "Almada", "Caparica", "Lisboa", "Porto", "Setubal", "Sintra" };
+	private static final String PASSWORD = "loadtest-password";
+
+	private final int id;
+	private final String baseUrl;
+	private final HttpClient http;
+	private final Mix mix;
+	private final Report report;
+	private final List<String> usernames;
+	private final String role;
+	private final long warmupEnd;
+	private final long end;
+	private final long thinkMillis;
+	private final Random random;
+
+	private int generation;
+	private String username;
+	private JsonNode token;
+
+	public VirtualUser(int id, String baseUrl, HttpClient http, Mix mix, Report report, List<String> usernames,
+			String role, long warmupEnd, long end, long thinkMillis, long seed) {
+		this.id = id;
+		this.baseUrl = baseUrl;
+		this.http = http;
+		this.mix = mix;
+		this.report = report;
+		this.usernames = usernames;
+		this.role = role;
+		this.warmupEnd = warmupEnd;
+		this.end = end;
+		this.thinkMillis = thinkMillis;
+		this.random = new Random(seed + id);
+	}
+
+	@Override
+	public void run() {
+		while(System.currentTimeMillis() < end) {
+			String operation = mix.pick(random);
+			if(username == null)
+				operation = Mix.REGISTER;
+			else if(token == null && !operation.equals(Mix.REGISTER))
+				operation = Mix.LOGIN;
+			else if(token != null && operation.equals(Mix.LOGIN))
+				operation = Mix.LOGOUT;
+
+			try {
+				perform(operation);
+				if(thinkMillis > 0)
+					Thread.sleep(thinkMillis);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void perform(String operation) throws InterruptedException {
+		ObjectNode body = MAPPER.createObjectNode();
+		switch(operation) {
+		case Mix.REGISTER: {
+			String name = "vu" + id + "-" + generation++;
+			body.put("username", name).put("password", PASSWORD).put("confirmation", PASSWORD)
+					.put("email", name + "@loadtest.example");
+			if(send(operation, HttpMethod.POST, "/rest/user/register", body) != null) {
+				promote(name);
+				username = name;
+				token = null;
+				usernames.add(name);
+			}
+			break;
+		}
+		case Mix.LOGIN: {
+			body.put("username", username).put("password", PASSWORD);
+			ContentResponse response = send(operation, HttpMethod.POST, "/rest/sign/in", body);
+			if(response != null)
+				token = read(response);
+			else
+				username = null;
+			break;
+		}
+		case Mix.MODIFY:
+			body.set("at", token);
+			body.put("locality", LOCALITIES[random.nextInt(LOCALITIES.length)])
+					.put("mobilePhone", String.valueOf(910000000 + random.nextInt(10000000)));
+			send(operation, HttpMethod.POST, "/rest/user/modify", body);
+			break;
+		case Mix.ATTRIBUTE:
+			body.set("at", token);
+			body.put("username", usernames.get(random.nextInt(usernames.size())));
+			send(operation, HttpMethod.POST, "/rest/user/attribute", body);
+			break;
+		case Mix.ATTRIBUTES: {
+			body.set("at", token);
+			ArrayNode names = body.putArray("usernames");
+			for(int i = 0; i < ATTRIBUTES_USERS; i++)
+				names.add(usernames.get(random.nextInt(usernames.size())));
+			send(operation, HttpMethod.POST, "/rest/user/attributes", body);
+			break;
+		}
+		case Mix.LOGOUT:
+			body.set("at", token);
+			send(operation, HttpMethod.DELETE, "/rest/sign/out", body);
+			token = null;
+			break;
+		default:
+			throw new IllegalArgumentException(operation);
+		}
+	}
+
+	/**
+	 * Sends a request and records its outcome, returning the response if it
+	 * was a 2xx and null otherwise.
+	 */
+	private ContentResponse send(String operation, HttpMethod method, String path, JsonNode body) throws InterruptedException {
+		long start = System.nanoTime();
+		String status;
+		ContentResponse response = null;
+		try {
+			response = http.newRequest(baseUrl + path)
+					.method(method)
+					.content(new StringContentProvider("application/json", MAPPER.writeValueAsString(body), StandardCharsets.UTF_8))
+					.timeout(30, TimeUnit.SECONDS)
+					.send();
+			status = String.valueOf(response.getStatus());
+		} catch(InterruptedException e) {
+			throw e;
+		} catch(Exception e) {
+			LOG.log(Level.FINE, operation + " failed", e);
+			status = "io";
+		}
+		if(System.currentTimeMillis() >= warmupEnd)
+			report.record(operation, status, (System.nanoTime() - start) / 1000);
+		// back off like a real client when the server sheds load
+		String retryAfter = response != null && response.getStatus() == 503 ? response.getHeaders().get("Retry-After") : null;
+		if(retryAfter != null)
+			Thread.sleep(Math.max(0, Math.min(Long.parseLong(retryAfter) * 1000, end - System.currentTimeMillis())));
+		return response != null && response.getStatus() / 100 == 2 ? response : null;
+	}
+
+	private static JsonNode read(ContentResponse response) {
+		try {
+			return MAPPER.readTree(response.getContent());
+		} catch(IOException e) {
+			throw new IllegalStateException("Login did not return a token", e);
+		}
+	}
+
+	private void promote(String name) {
+		if(role.equals(UserData.USER))
+			return;
+		Datastore datastore = Storage.getDatastore();
+		Key key = Storage.getKeys().profileKey(name);
+		datastore.put(Entity.newBuilder(datastore.get(key)).set("role", role).build());
+	}
+
+}
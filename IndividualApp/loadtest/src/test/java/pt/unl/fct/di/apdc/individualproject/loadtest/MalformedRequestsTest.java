@@ -0,0 +1,117 @@
+package pt.unl.fct.di.apdc.individualproject.loadtest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.server.Server;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+
+import pt.unl.fct.di.apdc.individualproject.util.AdmissionControl;
+import pt.unl.fct.di.apdc.individualproject.util.Metrics;
+import pt.unl.fct.di.apdc.individualproject.util.Storage;
+import pt.unl.fct.di.apdc.individualproject.util.UserData;
+
+/**
+ * Requests whose handlers fail must still give back their admission slot
+ * and in-flight count, otherwise enough of them lock a class out for good.
+ * So must streamed responses, once they are written.
+ */
+public class MalformedRequestsTest {
+
+	private static Server server;
+	private static HttpClient http;
+	private static String baseUrl;
+
+	@BeforeClass
+	public static void start() throws Exception {
+		Storage.use(new MemoryDatastore("test").getClient());
+		server = LoadTest.startServer("../src/webapp");
+		baseUrl = LoadTest.baseUrl(server);
+		http = new HttpClient();
+		http.start();
+	}
+
+	@AfterClass
+	public static void stop() throws Exception {
+		http.stop();
+		server.stop();
+	}
+
+	@Test
+	public void failedRequestsReleaseTheirSlots() throws Exception {
+		// more than the initial write limit, so a leak shows as 503s below
+		for(int i = 0; i < 60; i++)
+			send(HttpMethod.DELETE, "/rest/sign/out", "{}");
+		send(HttpMethod.POST, "/rest/user/modify", "{}");
+		send(HttpMethod.DELETE, "/rest/user/delete", "{}");
+		send(HttpMethod.POST, "/rest/user/attribute", "{}");
+		send(HttpMethod.POST, "/rest/user/attributes", "{\"at\":{}}");
+		send(HttpMethod.POST, "/rest/sign/in", "{");
+		send(HttpMethod.POST, "/rest/utils/compute", "[]");
+
+		for(AdmissionControl.Limiter limiter : AdmissionControl.getInstance().getLimiters())
+			assertEquals("in flight in " + limiter.getName(), 0, limiter.getInFlight());
+		for(Metrics.Endpoint endpoint : Metrics.getInstance().getEndpoints().values())
+			assertEquals("in flight in " + endpoint.getName(), 0, endpoint.getInFlight());
+
+		String user = "{\"username\":\"malformed\",\"password\":\"secret1\",\"confirmation\":\"secret1\",\"email\":\"m@example.com\"}";
+		assertEquals(200, send(HttpMethod.POST, "/rest/user/register", user).getStatus());
+		String login = "{\"username\":\"malformed\",\"password\":\"secret1\"}";
+		assertEquals(200, send(HttpMethod.POST, "/rest/sign/in", login).getStatus());
+	}
+
+	@Test
+	public void streamedResponsesReleaseTheirSlots() throws Exception {
+		String user = "{\"username\":\"streamed\",\"password\":\"secret1\",\"confirmation\":\"secret1\",\"email\":\"s@example.com\"}";
+		assertEquals(200, send(HttpMethod.POST, "/rest/user/register", user).getStatus());
+		Datastore datastore = Storage.getDatastore();
+		Key key = Storage.getKeys().profileKey("streamed");
+		datastore.put(Entity.newBuilder(datastore.get(key)).set("role", UserData.BACKOFFICE).build());
+		ContentResponse login = send(HttpMethod.POST, "/rest/sign/in", "{\"username\":\"streamed\",\"password\":\"secret1\"}");
+		assertEquals(200, login.getStatus());
+
+		ObjectMapper mapper = new ObjectMapper();
+		ObjectNode body = mapper.createObjectNode();
+		body.set("at", mapper.readTree(login.getContent()));
+		body.putArray("usernames").add("streamed").add("nobody");
+		ContentResponse response = send(HttpMethod.POST, "/rest/user/attributes", mapper.writeValueAsString(body));
+		assertEquals(200, response.getStatus());
+		assertEquals(1, mapper.readTree(response.getContent()).size());
+
+		// the slot is given back after the last byte is flushed, so allow a moment
+		long deadline = System.currentTimeMillis() + 2000;
+		while(inFlight() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(0, inFlight());
+	}
+
+	private static int inFlight() {
+		int inFlight = 0;
+		for(AdmissionControl.Limiter limiter : AdmissionControl.getInstance().getLimiters())
+			inFlight += limiter.getInFlight();
+		for(Metrics.Endpoint endpoint : Metrics.getInstance().getEndpoints().values())
+			inFlight += endpoint.getInFlight();
+		return inFlight;
+	}
+
+	private static ContentResponse send(HttpMethod method, String path, String body) throws Exception {
+		return http.newRequest(baseUrl + path)
+				.method(method)
+				.content(new StringContentProvider("application/json", body, StandardCharsets.UTF_8))
+				.send();
+	}
+
+}
@@ -0,0 +1,92 @@
+package pt.unl.fct.di.apdc.individualproject.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+
+import pt.unl.fct.di.apdc.individualproject.util.AuthToken;
+import pt.unl.fct.di.apdc.individualproject.util.RevocationList;
+import pt.unl.fct.di.apdc.individualproject.util.Storage;
+import pt.unl.fct.di.apdc.individualproject.util.TokenSweeper;
+import pt.unl.fct.di.apdc.individualproject.util.UserData;
+
+/**
+ * Revocations must hold across the refreshes of the local copy, which
+ * re-read the Revocation kind, and across sweeps, which delete the expired
+ * ones. The lists here refresh on every check.
+ */
+public class RevocationListTest {
+
+	private static Datastore datastore;
+
+	@BeforeClass
+	public static void start() {
+		Storage.use(new MemoryDatastore("test").getClient());
+		datastore = Storage.getDatastore();
+	}
+
+	@Test
+	public void revokedTokenStaysRevokedAcrossRefreshAndSweep() throws Exception {
+		RevocationList revocations = new RevocationList(datastore, 0);
+		AuthToken at = new AuthToken("revoked", UserData.USER);
+		AuthToken other = new AuthToken("revoked", UserData.USER);
+		assertFalse(revocations.isRevoked(at));
+
+		Entity revocation = revocations.tokenRevocation(at);
+		datastore.put(revocation);
+		revocations.add(revocation);
+		assertTrue(revocations.isRevoked(at));
+		assertFalse(revocations.isRevoked(other));
+		assertTrue(new RevocationList(datastore, 0).isRevoked(at));
+
+		AuthToken expired = new AuthToken("expired", UserData.USER);
+		expired.expirationData = System.currentTimeMillis() - 1000;
+		Entity old = revocations.tokenRevocation(expired);
+		datastore.put(old);
+
+		assertEquals(1, new TokenSweeper(datastore).sweep(TokenSweeper.KINDS[1], System.currentTimeMillis(), null));
+		assertNull(datastore.get(old.getKey()));
+		assertNotNull(datastore.get(revocation.getKey()));
+		assertTrue(revocations.isRevoked(at));
+		assertTrue(new RevocationList(datastore, 0).isRevoked(at));
+	}
+
+	@Test
+	public void localRevocationSurvivesARefreshThatMissesIt() {
+		RevocationList revocations = new RevocationList(datastore, 0);
+		AuthToken at = new AuthToken("unseen", UserData.USER);
+		// as if the query did not see the commit yet
+		revocations.add(revocations.tokenRevocation(at));
+		assertTrue(revocations.isRevoked(at));
+		assertTrue(revocations.isRevoked(at));
+
+		AuthToken expired = new AuthToken("unseen", UserData.USER);
+		expired.expirationData = System.currentTimeMillis() - 1000;
+		revocations.add(revocations.tokenRevocation(expired));
+		revocations.isRevoked(at);
+		assertFalse(revocations.isRevoked(expired));
+	}
+
+	@Test
+	public void userRevocationCoversEarlierTokensOnly() {
+		RevocationList revocations = new RevocationList(datastore, 0);
+		AuthToken before = new AuthToken("everywhere", UserData.USER);
+		Entity revocation = revocations.userRevocation("everywhere");
+		datastore.put(revocation);
+		AuthToken after = new AuthToken("everywhere", UserData.USER);
+		after.creationData = revocation.getLong("revokedAt") + 1;
+
+		assertTrue(revocations.isRevoked(before));
+		assertFalse(revocations.isRevoked(after));
+		assertFalse(revocations.isRevoked(new AuthToken("elsewhere", UserData.USER)));
+	}
+
+}
@@ -0,0 +1,118 @@
+package pt.unl.fct.di.apdc.individualproject.filters;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Priority;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import pt.unl.fct.di.apdc.individualproject.util.AdmissionControl;
+import pt.unl.fct.di.apdc.individualproject.util.AppExecutors;
+
+/**
+ * Admits each request under the adaptive limit of its endpoint's class, see
+ * {@link AdmissionControl}, answering 503 with Retry-After when it is over.
+ * GETs are reads unless listed as heavy, other methods are writes unless
+ * listed as reads or heavy. Runs after MetricsFilter, so rejected requests
+ * are still counted under their endpoint. The slot is given back in the
+ * response filter, which UnhandledExceptionMapper makes sure runs even when
+ * the handler fails, or once a streamed entity is written, since the work of
+ * a streaming endpoint goes on while it writes. Cron requests are never shed,
+ * as cron does not retry a 503 the way the task queues do.
+ */
+@Provider
+@Priority(Priorities.USER + 100)
+public class AdmissionControlFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+	private static final String ENDPOINT = "admission.endpoint";
+	private static final String START = "admission.start";
+	private static final String STREAMING = "admission.streaming";
+	private static final String CRON_HEADER = "X-Appengine-Cron";
+	private static final Set<String> READS = new HashSet<>(Arrays.asList(
+			"POST /user/attribute", "POST /user/attributes", "POST /user/list", "POST /user/suggest", "POST /utils/metrics",
+			"POST /utils/compute/{id}", "POST /utils/compute/{id}/result"));
+	private static final Set<String> HEAVY = new HashSet<>(Arrays.asList(
+			"POST /user/bulk", "POST /utils/compute/trigger", "POST /utils/compute", "POST /utils/compute/{id}/run",
+			"POST /utils/compute/{id}/chunk/{index}", "GET /utils/sweep/tokens", "POST /utils/sweep/tokens",
+			"POST /utils/migrate/schema"));
+	private static final Map<Method, AdmissionControl.Endpoint> endpoints = new ConcurrentHashMap<>();
+
+	private final AdmissionControl admission = AdmissionControl.getInstance();
+
+	@Context
+	private ResourceInfo resourceInfo;
+
+	public AdmissionControlFilter() {}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) throws IOException {
+		Method method = resourceInfo.getResourceMethod();
+		if(!admission.isEnabled() || method == null || requestContext.getHeaderString(CRON_HEADER) != null)
+			return;
+		AdmissionControl.Endpoint endpoint = endpoints.computeIfAbsent(method, m -> admission.endpoint(classify(MetricsFilter.name(m))));
+		if(!admission.tryAcquire(endpoint)) {
+			requestContext.abortWith(AppExecutors.busy());
+			return;
+		}
+		requestContext.setProperty(ENDPOINT, endpoint);
+		requestContext.setProperty(START, System.nanoTime());
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+			throws IOException {
+		AdmissionControl.Endpoint endpoint = (AdmissionControl.Endpoint) requestContext.getProperty(ENDPOINT);
+		if(endpoint == null)
+			return;
+		if(responseContext.getEntity() instanceof StreamingOutput) {
+			requestContext.setProperty(STREAMING, responseContext.getStatus());
+			return;
+		}
+		requestContext.removeProperty(ENDPOINT);
+		endpoint.release((System.nanoTime() - (Long) requestContext.getProperty(START)) / 1000, responseContext.getStatus());
+	}
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+		Object status = context.getProperty(STREAMING);
+		if(status == null) {
+			context.proceed();
+			return;
+		}
+		boolean failed = true;
+		try {
+			context.proceed();
+			failed = false;
+		} finally {
+			AdmissionControl.Endpoint endpoint = (AdmissionControl.Endpoint) context.getProperty(ENDPOINT);
+			context.removeProperty(ENDPOINT);
+			context.removeProperty(STREAMING);
+			if(endpoint != null)
+				endpoint.release((System.nanoTime() - (Long) context.getProperty(START)) / 1000, failed ? 500 : (Integer) status);
+		}
+	}
+
+	private static String classify(String endpoint) {
+		if(HEAVY.contains(endpoint))
+			return AdmissionControl.COMPUTE;
+		if(READS.contains(endpoint) || endpoint.startsWith(HttpMethod.GET + " "))
+			return AdmissionControl.READ;
+		return AdmissionControl.WRITE;
+	}
+}
@@ -0,0 +1,38 @@
+package pt.unl.fct.di.apdc.individualproject.filters;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import pt.unl.fct.di.apdc.individualproject.util.DatastoreStats;
+
+/**
+ * Detaches the request's DatastoreStats from the servlet thread once the
+ * request leaves it. MetricsFilter attaches them on this thread, but async
+ * handlers finish on another one, so its response filter cannot detach them
+ * here and they would be charged with whatever the thread serves next.
+ */
+public class DatastoreStatsFilter implements Filter {
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			DatastoreStats.attach(null);
+		}
+	}
+
+	@Override
+	public void destroy() {}
+
+}
@@ -0,0 +1,37 @@
+package pt.unl.fct.di.apdc.individualproject.filters;
+
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+/**
+ * Resources answer with CompletionStage&lt;Response&gt;, and Jersey passes that
+ * return type on as the generic type of the entity, which Jackson then
+ * refuses to write an AuthToken or a UserAttributes as. Entities whose
+ * generic type they are not an instance of are written as their own class.
+ */
+@Provider
+public class EntityTypeInterceptor implements WriterInterceptor {
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+		Object entity = context.getEntity();
+		if(entity != null && !rawType(context.getGenericType()).isInstance(entity))
+			context.setGenericType(entity.getClass());
+		context.proceed();
+	}
+
+	private static Class<?> rawType(Type type) {
+		if(type instanceof Class)
+			return (Class<?>) type;
+		if(type instanceof ParameterizedType)
+			return rawType(((ParameterizedType) type).getRawType());
+		return Object.class;
+	}
+
+}
@@ -0,0 +1,127 @@
+package pt.unl.fct.di.apdc.individualproject.filters;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import pt.unl.fct.di.apdc.individualproject.util.DatastoreStats;
+import pt.unl.fct.di.apdc.individualproject.util.Metrics;
+
+/**
+ * Records the latency, status code, in-flight count and Datastore usage of
+ * every request under its endpoint, named after the resource method's HTTP method and path
+ * template (e.g. "POST /user/list"). Requests that match no resource method
+ * are recorded as "unmatched". Streamed entities are recorded once they are
+ * written, as that is when their work ends.
+ */
+@Provider
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+	private static final String ENDPOINT = "metrics.endpoint";
+	private static final String START = "metrics.start";
+	private static final String DATASTORE = "metrics.datastore";
+	private static final String STREAMING = "metrics.streaming";
+	private static final Logger LOG = Logger.getLogger(MetricsFilter.class.getName());
+	private static final Map<Method, Metrics.Endpoint> endpoints = new ConcurrentHashMap<>();
+	private static final Metrics.Endpoint unmatched = Metrics.getInstance().endpoint("unmatched");
+
+	@Context
+	private ResourceInfo resourceInfo;
+
+	public MetricsFilter() {}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) throws IOException {
+		Method method = resourceInfo.getResourceMethod();
+		Metrics.Endpoint endpoint = method == null ? unmatched : endpoints.get(method);
+		if(endpoint == null)
+			endpoint = endpoints.computeIfAbsent(method, m -> Metrics.getInstance().endpoint(name(m)));
+		endpoint.started();
+		requestContext.setProperty(ENDPOINT, endpoint);
+		DatastoreStats stats = new DatastoreStats();
+		DatastoreStats.attach(stats);
+		requestContext.setProperty(DATASTORE, stats);
+		requestContext.setProperty(START, System.nanoTime());
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+			throws IOException {
+		Object start = requestContext.getProperty(START);
+		Metrics.Endpoint endpoint = (Metrics.Endpoint) requestContext.getProperty(ENDPOINT);
+		if(start == null || endpoint == null) {
+			// never got to a resource method, so the request filter did not run
+			unmatched.count(responseContext.getStatus());
+			return;
+		}
+		DatastoreStats stats = (DatastoreStats) requestContext.getProperty(DATASTORE);
+		if(responseContext.getEntity() instanceof StreamingOutput) {
+			requestContext.setProperty(STREAMING, responseContext.getStatus());
+			return;
+		}
+		finish(endpoint, stats, (Long) start, responseContext.getStatus());
+	}
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+		Object status = context.getProperty(STREAMING);
+		if(status == null) {
+			context.proceed();
+			return;
+		}
+		context.removeProperty(STREAMING);
+		boolean failed = true;
+		try {
+			context.proceed();
+			failed = false;
+		} finally {
+			finish((Metrics.Endpoint) context.getProperty(ENDPOINT), (DatastoreStats) context.getProperty(DATASTORE),
+					(Long) context.getProperty(START), failed ? 500 : (Integer) status);
+		}
+	}
+
+	private void finish(Metrics.Endpoint endpoint, DatastoreStats stats, long start, int status) {
+		endpoint.finished(status, (System.nanoTime() - start) / 1000);
+		stats.finish();
+		if(DatastoreStats.current() == stats)
+			DatastoreStats.attach(null);
+		for(String waste : endpoint.addDatastore(stats))
+			LOG.warning(endpoint.getName() + " wastes Datastore work: " + waste);
+		if(LOG.isLoggable(Level.FINE))
+			LOG.fine(endpoint.getName() + ": " + stats);
+	}
+
+	static String name(Method method) {
+		String httpMethod = "ANY";
+		for(Annotation annotation : method.getAnnotations()) {
+			HttpMethod verb = annotation.annotationType().getAnnotation(HttpMethod.class);
+			if(verb != null)
+				httpMethod = verb.value();
+		}
+		return httpMethod + " " + path(method.getDeclaringClass().getAnnotation(Path.class)) + path(method.getAnnotation(Path.class));
+	}
+
+	private static String path(Path path) {
+		if(path == null)
+			return "";
+		String value = path.value();
+		return value.startsWith("/") ? value : "/" + value;
+	}
+}
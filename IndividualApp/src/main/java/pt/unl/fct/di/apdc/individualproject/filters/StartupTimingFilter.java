@@ -0,0 +1,44 @@
+package pt.unl.fct.di.apdc.individualproject.filters;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Logs the latency of the first request served by this instance and how long
+ * after the JVM started it completed.
+ */
+@Provider
+public class StartupTimingFilter implements ContainerRequestFilter, ContainerResponseFilter {
+	private static final Logger LOG = Logger.getLogger(StartupTimingFilter.class.getName());
+	private static final String START = "startupTiming.start";
+	private static final AtomicBoolean done = new AtomicBoolean();
+
+	public StartupTimingFilter() {}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) throws IOException {
+		if(!done.get())
+			requestContext.setProperty(START, System.nanoTime());
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+			throws IOException {
+		Object start = requestContext.getProperty(START);
+		if(start == null || !done.compareAndSet(false, true))
+			return;
+
+		long latency = (System.nanoTime() - (Long) start) / 1000000;
+		long sinceStart = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+		LOG.info("First request " + requestContext.getMethod() + " /" + requestContext.getUriInfo().getPath()
+				+ " took " + latency + "ms, completed " + sinceStart + "ms after JVM start.");
+	}
+}
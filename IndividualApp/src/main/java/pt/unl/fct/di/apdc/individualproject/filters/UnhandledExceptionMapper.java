@@ -0,0 +1,30 @@
+package pt.unl.fct.di.apdc.individualproject.filters;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Answers 500 for exceptions no other mapper takes, such as a handler's
+ * CompletionStage failing. Jersey would otherwise hand them to the servlet
+ * container and skip the response filters, which give back what
+ * MetricsFilter and AdmissionControlFilter took for the request.
+ */
+@Provider
+public class UnhandledExceptionMapper implements ExceptionMapper<Throwable> {
+	private static final Logger LOG = Logger.getLogger(UnhandledExceptionMapper.class.getName());
+
+	@Override
+	public Response toResponse(Throwable e) {
+		if(e instanceof WebApplicationException)
+			return ((WebApplicationException) e).getResponse();
+		LOG.log(Level.SEVERE, "Unhandled exception", e);
+		return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
+	}
+
+}
@@ -6,48 +6,244 @@ import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.MediaType;
 
-import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskOptions;
-import com.google.gson.Gson;
+import com.google.cloud.datastore.Datastore;
+
+import pt.unl.fct.di.apdc.individualproject.util.AuthToken;
+import pt.unl.fct.di.apdc.individualproject.util.ComputeJobs;
+import pt.unl.fct.di.apdc.individualproject.util.JobData;
+import pt.unl.fct.di.apdc.individualproject.util.JobStatus;
+import pt.unl.fct.di.apdc.individualproject.util.JsonMapper;
+import pt.unl.fct.di.apdc.individualproject.util.Keys;
+import pt.unl.fct.di.apdc.individualproject.util.MetricsReport;
+import pt.unl.fct.di.apdc.individualproject.util.SchemaMigration;
+import pt.unl.fct.di.apdc.individualproject.util.TokenSweeper;
+import pt.unl.fct.di.apdc.individualproject.util.TokenVerifier;
+import pt.unl.fct.di.apdc.individualproject.util.TransactionRunner;
+import pt.unl.fct.di.apdc.individualproject.util.UserData;
 
 @Path("/utils")
 @Produces(MediaType.APPLICATION_JSON + ";charset=utf-8")
 public class ComputationResource {
 	private static final Logger LOG = Logger.getLogger(LoginResource.class.getName());
-	private final Gson g = new Gson();
 	private static final DateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ");
+	@Inject
+	private ComputeJobs jobs;
+	@Inject
+	private Datastore datastore;
+	@Inject
+	private Keys keys;
+	@Inject
+	private TokenVerifier tokenVerifier;
 	public ComputationResource() {} //nothing to be done here @GET
 	@GET
 	@Path("/time")
 	public Response getCurrentTime() {
 		LOG.fine("Replying to date request.");
-		return Response.ok().entity(g.toJson(fmt.format(new Date()))).build();
+		return Response.ok().entity(JsonMapper.stream(fmt.format(new Date()))).build();
 	}
-	@GET
+	@POST
+	@Path("/compute/trigger")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response triggerExecuteComputeTask(UserData data) {
+		Response denied = checkBackend(data == null ? null : data.at);
+		if(denied != null)
+			return denied;
+		try {
+			JobStatus status = jobs.trigger(JobData.defaultJob());
+			return Response.status(Status.ACCEPTED).entity(status).build();
+		} catch (TransactionRunner.ContentionException e) {
+			return Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", 1).entity("Too much contention, try again later.").build();
+		} catch (Exception e) {
+			LOG.logp(Level.SEVERE, this.getClass().getCanonicalName(), "triggerExecuteComputeTask", "An exception has ocurred", e);
+			return Response.serverError().build();
+		}
+	}
+	@POST
 	@Path("/compute")
-	public Response triggerExecuteComputeTask() {
-		Queue queue = QueueFactory.getDefaultQueue();
-		queue.add(TaskOptions.Builder.withUrl("/rest/utils/compute"));
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response submitComputeJob(JobData data) {
+		Response denied = checkBackend(data == null ? null : data.at);
+		if(denied != null)
+			return denied;
+		String error = data.validate();
+		if(error != null)
+			return Response.status(Status.BAD_REQUEST).entity(error).build();
+		JobStatus status = jobs.submit(data);
+		LOG.fine("Submitted compute job " + status.id);
+		return Response.status(Status.ACCEPTED).entity(status).build();
+	}
+	@POST
+	@Path("/compute/{id}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response getComputeJob(@PathParam("id") String id, UserData data) {
+		Response denied = checkBackend(data == null ? null : data.at);
+		if(denied != null)
+			return denied;
+		JobStatus status = jobs.status(id);
+		if(status == null)
+			return Response.status(Status.NOT_FOUND).entity("Job not found.").build();
+		return Response.ok().entity(status).build();
+	}
+	@POST
+	@Path("/compute/{id}/result")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response getComputeJobResult(@PathParam("id") String id, UserData data) {
+		Response denied = checkBackend(data == null ? null : data.at);
+		if(denied != null)
+			return denied;
+		JobStatus status = jobs.status(id);
+		if(status == null)
+			return Response.status(Status.NOT_FOUND).entity("Job not found.").build();
+		if(!JobStatus.DONE.equals(status.state))
+			return Response.status(Status.CONFLICT).entity("Job is " + status.state + ".").build();
+		return Response.ok().entity(status.result).build();
+	}
+	@DELETE
+	@Path("/compute/{id}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response cancelComputeJob(@PathParam("id") String id, UserData data) {
+		Response denied = checkBackend(data == null ? null : data.at);
+		if(denied != null)
+			return denied;
+		JobStatus status = jobs.cancel(id);
+		if(status == null)
+			return Response.status(Status.NOT_FOUND).entity("Job not found.").build();
+		return Response.ok().entity(status).build();
+	}
+	@POST
+	@Path("/compute/{id}/run")
+	public Response executeComputeJob(@HeaderParam("X-AppEngine-QueueName") String queueName, @PathParam("id") String id) {
+		if(queueName == null)
+			return Response.status(Status.FORBIDDEN).build();
+		LOG.fine("Starting to execute compute job " + id);
+		try {
+			jobs.run(id);
+		} catch (Exception e) {
+			LOG.logp(Level.SEVERE, this.getClass().getCanonicalName(), "executeComputeJob", "An exception has ocurred", e);
+			return Response.serverError().build();
+		}
 		return Response.ok().build();
 	}
 	@POST
-	@Path("/compute")
-	public Response executeComputeTask() {
-		LOG.fine("Starting to execute computation taks");
+	@Path("/compute/{id}/chunk/{index}")
+	public Response executeComputeChunk(@HeaderParam("X-AppEngine-QueueName") String queueName, @PathParam("id") String id, @PathParam("index") int index) {
+		if(queueName == null)
+			return Response.status(Status.FORBIDDEN).build();
 		try {
-			Thread.sleep(1000 * 60 * 5);
+			jobs.runChunk(id, index);
 		} catch (Exception e) {
-			LOG.logp(Level.SEVERE, this.getClass().getCanonicalName(), "executeComputeTask", "An exception has ocurred", e);
+			LOG.logp(Level.SEVERE, this.getClass().getCanonicalName(), "executeComputeChunk", "An exception has ocurred", e);
 			return Response.serverError().build();
-		} //Simulates 5m execution
+		}
 		return Response.ok().build();
 	}
-} 
\ No newline at end of file
+	@GET
+	@Path("/sweep/tokens")
+	public Response sweepTokens(@HeaderParam("X-Appengine-Cron") String cron) {
+		if(cron == null)
+			return Response.status(Status.FORBIDDEN).build();
+		return continueSweepTokens(cron, TokenSweeper.KINDS[0], System.currentTimeMillis(), null);
+	}
+	@POST
+	@Path("/sweep/tokens")
+	@Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+	public Response continueSweepTokens(@HeaderParam("X-AppEngine-QueueName") String queueName, @FormParam("kind") @DefaultValue("Token") String kind,
+			@FormParam("before") long before, @FormParam("cursor") String cursor) {
+		if(queueName == null)
+			return Response.status(Status.FORBIDDEN).build();
+		try {
+			int deleted = TokenSweeper.getInstance().sweep(kind, before, cursor);
+			return Response.ok().entity(deleted).build();
+		} catch (Exception e) {
+			LOG.logp(Level.SEVERE, this.getClass().getCanonicalName(), "sweepTokens", "An exception has ocurred", e);
+			return Response.serverError().build();
+		}
+	}
+	@POST
+	@Path("/migrate/schema")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response migrateSchema(UserData data) {
+		if(data == null || data.at == null)
+			return Response.status(Status.BAD_REQUEST).entity("Missing token.").build();
+		AuthToken token = tokenVerifier.verify(data.at, () -> datastore.get(keys.tokenKey(data.at.username)));
+		if(token == null)
+			return Response.status(Status.FORBIDDEN).entity("User not logged.").build();
+		if(!token.role.equals(UserData.SUPER))
+			return Response.status(Status.FORBIDDEN).entity("User not allowed to do this operation.").build();
+		return runMigrateSchema(SchemaMigration.KINDS[0], null);
+	}
+	@POST
+	@Path("/migrate/schema")
+	@Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+	public Response continueMigrateSchema(@HeaderParam("X-AppEngine-QueueName") String queueName, @FormParam("kind") String kind, @FormParam("cursor") String cursor) {
+		if(queueName == null)
+			return Response.status(Status.FORBIDDEN).build();
+		return runMigrateSchema(kind, cursor);
+	}
+	private Response runMigrateSchema(String kind, String cursor) {
+		try {
+			int rewritten = SchemaMigration.getInstance().migrate(kind, cursor);
+			return Response.ok().entity(rewritten).build();
+		} catch (Exception e) {
+			LOG.logp(Level.SEVERE, this.getClass().getCanonicalName(), "migrateSchema", "An exception has ocurred", e);
+			return Response.serverError().build();
+		}
+	}
+	@POST
+	@Path("/metrics")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces({MediaType.APPLICATION_JSON + ";charset=utf-8", MediaType.TEXT_PLAIN + ";version=0.0.4;charset=utf-8"})
+	public Response getMetrics(UserData data, @QueryParam("format") String format) {
+		return metrics(data == null ? null : data.at, format);
+	}
+	/**
+	 * For scrapers, which send the token as "Authorization: Bearer", see
+	 * AuthToken.fromBearer, and get the Prometheus format unless they ask for json.
+	 */
+	@GET
+	@Path("/metrics")
+	@Produces({MediaType.TEXT_PLAIN + ";version=0.0.4;charset=utf-8", MediaType.APPLICATION_JSON + ";charset=utf-8"})
+	public Response scrapeMetrics(@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization,
+			@QueryParam("format") @DefaultValue("prometheus") String format) {
+		return metrics(AuthToken.fromBearer(authorization), format);
+	}
+	private Response metrics(AuthToken at, String format) {
+		Response denied = checkBackend(at);
+		if(denied != null)
+			return denied;
+		MetricsReport report = MetricsReport.collect();
+		if("prometheus".equals(format))
+			return Response.ok(report.toPrometheus(), MediaType.TEXT_PLAIN + ";version=0.0.4;charset=utf-8").build();
+		return Response.ok(report, MediaType.APPLICATION_JSON + ";charset=utf-8").build();
+	}
+	/**
+	 * Null if the token is a logged GA or SU one, otherwise the answer refusing the request.
+	 */
+	private Response checkBackend(AuthToken at) {
+		if(at == null)
+			return Response.status(Status.BAD_REQUEST).entity("Missing token.").build();
+		AuthToken token = tokenVerifier.verify(at, () -> datastore.get(keys.tokenKey(at.username)));
+		if(token == null)
+			return Response.status(Status.FORBIDDEN).entity("User not logged.").build();
+		if(!token.role.equals(UserData.BACKEND) && !token.role.equals(UserData.SUPER))
+			return Response.status(Status.FORBIDDEN).entity("User not allowed to do this operation.").build();
+		return null;
+	}
+}
@@ -1,22 +1,35 @@
 package pt.unl.fct.di.apdc.individualproject.resources;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.logging.Logger;
 
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
-import com.google.appengine.repackaged.org.apache.commons.codec.digest.DigestUtils;
 import com.google.cloud.datastore.*;
-import com.google.gson.Gson;
 
+import pt.unl.fct.di.apdc.individualproject.util.AppExecutors;
+import pt.unl.fct.di.apdc.individualproject.util.AuditEvent;
+import pt.unl.fct.di.apdc.individualproject.util.AuditLog;
 import pt.unl.fct.di.apdc.individualproject.util.AuthToken;
+import pt.unl.fct.di.apdc.individualproject.util.EntityLoader;
+import pt.unl.fct.di.apdc.individualproject.util.Keys;
 import pt.unl.fct.di.apdc.individualproject.util.LoginData;
+import pt.unl.fct.di.apdc.individualproject.util.LoginThrottle;
+import pt.unl.fct.di.apdc.individualproject.util.PasswordHasher;
+import pt.unl.fct.di.apdc.individualproject.util.Schema;
+import pt.unl.fct.di.apdc.individualproject.util.TokenVerifier;
+import pt.unl.fct.di.apdc.individualproject.util.TransactionRunner;
 
 @Path("/sign")
 @Produces(MediaType.APPLICATION_JSON + ";charset=utf-8")
@@ -25,32 +38,55 @@ public class LoginResource {
 	 * A Logger Object
 	 */
 	private static final Logger LOG = Logger.getLogger(LoginResource.class.getName());
-	private final Gson g = new Gson();
-	private final Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-	private KeyFactory userKeyFactory = datastore.newKeyFactory().setKind("User");
-	private KeyFactory tokenKeyFactory = datastore.newKeyFactory().setKind("Token");
+	@Inject
+	private Datastore datastore;
+	@Inject
+	private Keys keys;
+	@Inject
+	private TokenVerifier tokenVerifier;
+	@Inject
+	private PasswordHasher passwordHasher;
+	@Inject
+	private TransactionRunner transactions;
+	@Inject
+	private LoginThrottle loginThrottle;
+	@Inject
+	private AuditLog auditLog;
 	
 	public LoginResource() {}
 	
 	@Path("/in")
 	@POST
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response login(LoginData data) {
+	public CompletionStage<Response> login(LoginData data, @Context HttpServletRequest request) {
+		long wait = loginThrottle.acquire(data.username, request.getRemoteAddr());
+		if(wait > 0) {
+			LOG.fine("Login attempt by user " + data.username + " throttled.");
+			return CompletableFuture.completedFuture(Response.status(Status.TOO_MANY_REQUESTS)
+					.header("Retry-After", (wait + 999) / 1000)
+					.entity("Too many login attempts, try again later.").build());
+		}
+		return AppExecutors.async(() -> doLogin(data));
+	}
+	
+	private Response doLogin(LoginData data) {
 		LOG.fine("Login attempt by user: " + data.username);
 		
-		Key userKey = userKeyFactory.newKey(data.username);
-		Key tokenKey = tokenKeyFactory.newKey(data.username);
-		Key profileKey = datastore.newKeyFactory()
-				.addAncestors(PathElement.of("User", data.username))
-				.setKind("Profile").newKey(data.username);
-		Transaction txn = datastore.newTransaction();
+		Key userKey = keys.userKey(data.username);
+		Key tokenKey = keys.tokenKey(data.username);
+		Key profileKey = keys.profileKey(data.username);
+		
+		return transactions.run(txn -> {
+		EntityLoader loader = new EntityLoader(txn).add(userKey, profileKey);
+		if(!tokenVerifier.isSigned())
+			loader.add(tokenKey);
 		
-		try {
-		Entity user = txn.get(userKey);
-		Entity profile = txn.get(profileKey);
-		Entity oldToken = txn.get(tokenKey);
+		Entity user = loader.get(userKey);
+		Entity profile = loader.get(profileKey);
+		Entity oldToken = tokenVerifier.isSigned() ? null : loader.get(tokenKey);
 		
-		if(oldToken != null) {
+		// an expired token is overwritten below
+		if(oldToken != null && oldToken.getLong("expirationData") > System.currentTimeMillis()) {
 			txn.rollback();
 			return Response.status(Status.FORBIDDEN).entity("User with username " + data.username + " already logged in.").build();
 		}
@@ -61,7 +97,7 @@ public class LoginResource {
 		}
 		
 		String hashedPWD = user.getString("password");
-		if(!hashedPWD.equals(DigestUtils.sha512Hex(data.password))) {
+		if(!passwordHasher.verify(data.password, hashedPWD)) {
 			txn.rollback();
 			return Response.status(Status.FORBIDDEN).entity("Incorret password.").build();
 		}
@@ -71,44 +107,53 @@ public class LoginResource {
 			return Response.status(Status.FORBIDDEN).entity("Account disabled.").build();
 		}
 		
-		AuthToken at = new AuthToken(data.username, profile.getString("role"));
+		AuthToken at = tokenVerifier.issue(data.username, profile.getString("role"));
 		
-		Entity token = Entity.newBuilder(tokenKey)
-				.set("username", at.username)
-				.set("id", at.tokenID)
-				.set("role", at.role)
-				.set("creationData", at.creationData)
-				.set("expirationData", at.expirationData)
-				.build();
-		
-		txn.put(token);
+		if(!tokenVerifier.isSigned()) {
+			Entity token = Schema.conform(Entity.newBuilder(tokenKey)
+					.set("username", at.username)
+					.set("id", at.tokenID)
+					.set("role", at.role)
+					.set("creationData", at.creationData)
+					.set("expirationData", at.expirationData)
+					.build());
+			
+			txn.put(token);
+		}
 		txn.commit();
+		tokenVerifier.loggedIn(at);
+		auditLog.record(AuditEvent.LOGIN, data.username, data.username, null);
+		if(passwordHasher.needsUpgrade(hashedPWD))
+			passwordHasher.upgrade(data.username, data.password, hashedPWD);
 		
-		return Response.ok(g.toJson(at)).build();
-		} catch( Exception e ) {
-            txn.rollback();
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
-		} finally {
-			if(txn.isActive())
-				txn.rollback();
-		}
+		return Response.ok(at).build();
+		});
 			
 	}
 	
 	@Path("/out")
 	@DELETE
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response logout(LoginData data) {
-		Key tokenKey = tokenKeyFactory.newKey(data.at.username);
-		Transaction txn = datastore.newTransaction();
+	public CompletionStage<Response> logout(LoginData data) {
+		return AppExecutors.async(() -> doLogout(data));
+	}
+	
+	private Response doLogout(LoginData data) {
+		Key tokenKey = keys.tokenKey(data.at.username);
 		
-		try {
+		return transactions.run(txn -> {
 			
-			Entity token = txn.get(tokenKey);
+			EntityLoader loader = new EntityLoader(txn);
 			
-			if(data.at.isValid(token.getLong("expirationData")) && data.at.tokenID.equals(token.getString("id"))) {
-				txn.delete(tokenKey);
+			AuthToken token = tokenVerifier.verify(data.at, () -> loader.get(tokenKey));
+			
+			if(token != null) {
+				if(!tokenVerifier.isSigned())
+					txn.delete(tokenKey);
+				tokenVerifier.revokeToken(txn, data.at);
 				txn.commit();
+				tokenVerifier.loggedOut(data.at);
+				auditLog.record(AuditEvent.LOGOUT, data.at.username, data.at.username, null);
 				return Response.ok().entity("User " + data.at.username + " logged out successfully.").build();
 				
 			} else {
@@ -116,13 +161,7 @@ public class LoginResource {
 				return Response.status(Status.FORBIDDEN).entity("User not logged.").build();
 			}
 			
-		} catch( Exception e ) {
-            txn.rollback();
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
-		} finally {
-			if(txn.isActive())
-				txn.rollback();
-		}
+		});
 	}
 	
 }
@@ -1,8 +1,23 @@
 package pt.unl.fct.di.apdc.individualproject.resources;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.inject.Inject;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.POST;
@@ -11,67 +26,120 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
-import com.google.appengine.repackaged.org.apache.commons.codec.digest.DigestUtils;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.cloud.Timestamp;
 import com.google.cloud.datastore.*;
-import com.google.gson.Gson;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.Filter;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.datastore.v1.QueryResultBatch.MoreResultsType;
 
+import pt.unl.fct.di.apdc.individualproject.util.AppExecutors;
+import pt.unl.fct.di.apdc.individualproject.util.AttributesData;
+import pt.unl.fct.di.apdc.individualproject.util.AuditEvent;
+import pt.unl.fct.di.apdc.individualproject.util.AuditLog;
+import pt.unl.fct.di.apdc.individualproject.util.AuthToken;
+import pt.unl.fct.di.apdc.individualproject.util.BulkData;
+import pt.unl.fct.di.apdc.individualproject.util.BulkResult;
+import pt.unl.fct.di.apdc.individualproject.util.EntityLoader;
+import pt.unl.fct.di.apdc.individualproject.util.EntityPatch;
+import pt.unl.fct.di.apdc.individualproject.util.JsonMapper;
+import pt.unl.fct.di.apdc.individualproject.util.Keys;
+import pt.unl.fct.di.apdc.individualproject.util.ListData;
+import pt.unl.fct.di.apdc.individualproject.util.PasswordHasher;
+import pt.unl.fct.di.apdc.individualproject.util.Schema;
+import pt.unl.fct.di.apdc.individualproject.util.SharedCache;
+import pt.unl.fct.di.apdc.individualproject.util.SuggestData;
+import pt.unl.fct.di.apdc.individualproject.util.SuggestIndex;
+import pt.unl.fct.di.apdc.individualproject.util.TokenVerifier;
+import pt.unl.fct.di.apdc.individualproject.util.TransactionRunner;
+import pt.unl.fct.di.apdc.individualproject.util.UserAttributes;
 import pt.unl.fct.di.apdc.individualproject.util.UserData;
+import pt.unl.fct.di.apdc.individualproject.util.UserPage;
 
 @Path("/user")
 @Produces(MediaType.APPLICATION_JSON + ";charset=utf-8")
 public class UserResource {
 
-	private final Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-	private final Gson g = new Gson();
-	private KeyFactory userKeyFactory = datastore.newKeyFactory().setKind("User");
-	private KeyFactory tokenKeyFactory = datastore.newKeyFactory().setKind("Token");
+	private static final Logger LOG = Logger.getLogger(UserResource.class.getName());
+	/**
+	 * Users per bulk transaction, each one costs up to four mutations and
+	 * a commit allows 500.
+	 */
+	private static final int BULK_CHUNK_SIZE = 100;
+	/**
+	 * Users per lookup of /user/attributes, two keys each.
+	 */
+	private static final int ATTRIBUTES_CHUNK_SIZE = 25;
+	
+	@Inject
+	private Datastore datastore;
+	@Inject
+	private Keys keys;
+	@Inject
+	private TokenVerifier tokenVerifier;
+	@Inject
+	private PasswordHasher passwordHasher;
+	@Inject
+	private TransactionRunner transactions;
+	@Inject
+	private SuggestIndex suggestIndex;
+	@Inject
+	private SharedCache sharedCache;
+	@Inject
+	private AuditLog auditLog;
 	
 	@POST
 	@Path("/register")
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response registUser(UserData data) {
+	public CompletionStage<Response> registUser(UserData data) {
+		return AppExecutors.async(() -> doRegistUser(data));
+	}
+	
+	private Response doRegistUser(UserData data) {
 		if(data.username == null || data.password == null || data.confirmation == null || data.email == null) {
 			return Response.status(Response.Status.BAD_REQUEST).entity("Null data present, please fill all the information necessary.").build();
 		}
 		
-		Transaction txn = datastore.newTransaction();
-		Key userKey = userKeyFactory.newKey(data.username);
-		Key profileKey = datastore.newKeyFactory()
-				.addAncestors(PathElement.of("User", data.username))
-				.setKind("Profile").newKey(data.username);
+		if(!data.password.equals(data.confirmation)) {
+			return Response.status(Response.Status.CONFLICT).entity("Passwords do not match.").build();
+		}
+		
+		if(data.password.length() < 6) {
+			return Response.status(Response.Status.CONFLICT).entity("Passwords must be longer than 6 characters.").build();
+		}
+		
+		Key userKey = keys.userKey(data.username);
+		Key profileKey = keys.profileKey(data.username);
 		
+		// hashed while the transaction reads, and only once however often it is retried
+		CompletableFuture<String> hash;
 		try {
+			hash = passwordHasher.hashAsync(data.password);
+		} catch( RejectedExecutionException e ) {
+			return AppExecutors.busy();
+		}
+		
+		return transactions.run(txn -> {
 			Entity user = txn.get(userKey);
-			Entity profile = txn.get(profileKey);
-			
-			if(!data.password.equals(data.confirmation)) {
-				txn.rollback();
-				return Response.status(Response.Status.CONFLICT).entity("Passwords do not match.").build();
-			}
-			
-			if(data.password.length() < 6) {
-				txn.rollback();
-				return Response.status(Response.Status.CONFLICT).entity("Passwords must be longer than 6 characters.").build();
-			}
 			
 			if(user != null) {
 				txn.rollback();
 				return Response.status(Response.Status.BAD_REQUEST).entity("Username " + data.username + " already exists.").build();
 			}
 			
-			SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss");
-			String timestamp  = dateFormat.format(new Date());
-			
-			user = Entity.newBuilder(userKey)
-					.set("password", DigestUtils.sha512Hex(data.password))
+			user = Schema.conform(Entity.newBuilder(userKey)
+					.set("password", PasswordHasher.await(hash))
 					.set("email", data.email)
-					.set("creation_timestamp", timestamp)
-					.build();
+					.set(Schema.CREATION_TIMESTAMP, Timestamp.now())
+					.build());
 			
-			txn.add(user);
+			// absence was checked in this transaction, add() would only check it again
+			txn.put(user);
 			
-			profile = Entity.newBuilder(profileKey)
+			Entity profile = Schema.conform(Entity.newBuilder(profileKey)
 					.set("profile", "PRIVATE")
 					.set("role", "U")
 					.set("state", "ENABLED")
@@ -80,19 +148,15 @@ public class UserResource {
 					.set("address", "")
 					.set("complementAddress", "")
 					.set("locality", "")
-					.build();		
+					.build());
 			
 			txn.add(profile);
 			txn.commit();
+			suggestIndex.put(data.username, "");
+			auditLog.record(AuditEvent.REGISTER, data.username, data.username, null);
 			return Response.ok().entity("New user registered with username " + data.username).build();
 			
-		} catch( Exception e ) {
-            txn.rollback();
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
-		} finally {
-			if(txn.isActive())
-				txn.rollback();
-		}
+		});
 		
 	}
 	
@@ -100,40 +164,53 @@ public class UserResource {
 	@DELETE
 	@Path("/delete")
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response deleteUser(UserData data) {
-		Transaction txn = datastore.newTransaction();
-		Key userToRmKey = userKeyFactory.newKey(data.username);
-		Key profileToRmKey = datastore.newKeyFactory()
-				.addAncestors(PathElement.of("User", data.username))
-				.setKind("Profile").newKey(data.username);
-		Key tokenToRmKey = tokenKeyFactory.newKey(data.username);
-		Key tokenKey = tokenKeyFactory.newKey(data.at.username);
-		try {
-			Entity userToRm = txn.get(userToRmKey);
-			Entity tokenToRm = txn.get(tokenToRmKey);
-			Entity token = txn.get(tokenKey);
-			
-			if(token != null && data.at.isValid(token.getLong("expirationData")) && data.at.tokenID.equals(token.getString("id"))) {
+	public CompletionStage<Response> deleteUser(UserData data) {
+		return AppExecutors.async(() -> doDeleteUser(data));
+	}
+	
+	private Response doDeleteUser(UserData data) {
+		Key userToRmKey = keys.userKey(data.username);
+		Key profileToRmKey = keys.profileKey(data.username);
+		Key tokenToRmKey = keys.tokenKey(data.username);
+		Key tokenKey = keys.tokenKey(data.at.username);
+		return transactions.run(txn -> {
+			EntityLoader loader = new EntityLoader(txn).add(userToRmKey, tokenToRmKey);
+			if(tokenVerifier.needsLookup(data.at))
+				loader.add(tokenKey);
+			
+			Entity userToRm = loader.get(userToRmKey);
+			Entity tokenToRm = loader.get(tokenToRmKey);
+			AuthToken token = tokenVerifier.verify(data.at, () -> loader.get(tokenKey));
+			
+			if(token != null) {
 				
 				if(userToRm == null) {
 					txn.rollback();
 					return Response.status(Status.FORBIDDEN).entity("User with username " + data.username + " does not exist.").build();
 				}
 				
-				String role = token.getString("role");
+				String role = token.role;
 				if(data.username.equals(data.at.username) && role.equals("U")) {
 					txn.delete(userToRmKey);
 					txn.delete(profileToRmKey);
 					if(tokenToRm != null)
 						txn.delete(tokenToRmKey);
+					tokenVerifier.revokeUser(txn, data.username);
 					txn.commit();
+					tokenVerifier.userChanged(data.username);
+					suggestIndex.remove(data.username);
+					auditLog.record(AuditEvent.DELETE, data.at.username, data.username, null);
 					return Response.ok().entity("User with username " + data.username + " removed.").build();
 				} else if(!data.username.equals(data.at.username) && (role.equals("GBO") || role.equals("GA") || role.equals("SU"))){
 					txn.delete(userToRmKey);
 					txn.delete(profileToRmKey);
 					if(tokenToRm != null)
 						txn.delete(tokenToRmKey);
+					tokenVerifier.revokeUser(txn, data.username);
 					txn.commit();
+					tokenVerifier.userChanged(data.username);
+					suggestIndex.remove(data.username);
+					auditLog.record(AuditEvent.DELETE, data.at.username, data.username, null);
 					return Response.ok().entity("User with username " + data.username + " removed.").build();
 				} else {
 					txn.rollback();
@@ -146,36 +223,32 @@ public class UserResource {
 			}
 			
 			
-		} catch( Exception e ) {
-            txn.rollback();
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
-		} finally {
-			if(txn.isActive())
-				txn.rollback();
-		}
+		});
 		
 	}
 	
 	@POST
 	@Path("/modify")
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response modifyUserInfo(UserData data) {
-		Transaction txn = datastore.newTransaction();
-		Key userKey = userKeyFactory.newKey(data.at.username);
-		Key oldProfileKey = datastore.newKeyFactory()
-				.addAncestors(PathElement.of("User", data.at.username))
-				.setKind("Profile").newKey(data.at.username);
-		Key newProfileKey = datastore.newKeyFactory()
-				.addAncestors(PathElement.of("User", data.at.username))
-				.setKind("Profile").newKey(data.at.username);
-		Key tokenKey = tokenKeyFactory.newKey(data.at.username);
+	public CompletionStage<Response> modifyUserInfo(UserData data) {
+		return AppExecutors.async(() -> doModifyUserInfo(data));
+	}
+	
+	private Response doModifyUserInfo(UserData data) {
+		Key userKey = keys.userKey(data.at.username);
+		Key profileKey = keys.profileKey(data.at.username);
+		Key tokenKey = keys.tokenKey(data.at.username);
 		
-		try {
-			Entity user = txn.get(userKey);
-			Entity profile = txn.get(oldProfileKey);
-			Entity token = txn.get(tokenKey);
+		return transactions.run(txn -> {
+			EntityLoader loader = new EntityLoader(txn).add(userKey, profileKey);
+			if(tokenVerifier.needsLookup(data.at))
+				loader.add(tokenKey);
 			
-			if(token != null && data.at.isValid(token.getLong("expirationData")) && data.at.tokenID.equals(token.getString("id"))) {
+			Entity user = loader.get(userKey);
+			Entity profile = loader.get(profileKey);
+			AuthToken token = tokenVerifier.verify(data.at, () -> loader.get(tokenKey));
+			
+			if(token != null) {
 			
 				if(user == null) {
 					txn.rollback();
@@ -183,91 +256,72 @@ public class UserResource {
 				}
 				
 				
-				Entity newProfile = Entity.newBuilder(newProfileKey)
-						.set("profile", (data.profile != null) ? data.profile : profile.getString("profile"))
-						.set("role", profile.getString("role"))
-						.set("state", profile.getString("state"))
-						.set("landline", (data.landline != null) ? data.landline : profile.getString("landline"))
-						.set("mobilePhone", (data.mobilePhone != null) ? data.mobilePhone : profile.getString("mobilePhone"))
-						.set("address", (data.address != null) ? data.address : profile.getString("address"))
-						.set("complementAddress", (data.complementAddress != null) ? data.complementAddress : profile.getString("complementAddress"))
-						.set("locality", (data.locality != null) ? data.locality : profile.getString("locality"))
-						.build();		
+				EntityPatch newProfile = new EntityPatch(profile)
+						.set("profile", data.profile)
+						.set("landline", data.landline)
+						.set("mobilePhone", data.mobilePhone)
+						.set("address", data.address)
+						.set("complementAddress", data.complementAddress)
+						.set("locality", data.locality);
 				
-				txn.delete(oldProfileKey);
-				txn.add(newProfile);
+				if(!newProfile.isChanged()) {
+					txn.rollback();
+					return Response.ok().entity( data.at.username + " info updated.").build();
+				}
+				
+				Entity changed = newProfile.build();
+				txn.put(changed);
 				txn.commit();
+				suggestIndex.put(data.at.username, changed.getString("locality"));
+				auditLog.record(AuditEvent.MODIFY, data.at.username, data.at.username, null);
 				
 				return Response.ok().entity( data.at.username + " info updated.").build();
 			} else {
 				txn.rollback();
 				return Response.status(Status.FORBIDDEN).entity("User not logged.").build();
 			}
-		} catch( Exception e ) {
-            txn.rollback();
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
-		} finally {
-			if(txn.isActive())
-				txn.rollback();
-		}
+		});
 	}
 	
 	@POST
 	@Path("/role")
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response modifyUserRole(UserData data) {
-		Transaction txn = datastore.newTransaction();
-		Key userKey = userKeyFactory.newKey(data.username);
-		Key oldProfileKey = datastore.newKeyFactory()
-				.addAncestors(PathElement.of("User", data.username))
-				.setKind("Profile").newKey(data.username);
-		Key newProfileKey = datastore.newKeyFactory()
-				.addAncestors(PathElement.of("User", data.username))
-				.setKind("Profile").newKey(data.username);
-		Key tokenKey = tokenKeyFactory.newKey(data.at.username);
-		Key oldTokenKey = tokenKeyFactory.newKey(data.username);
-		Key newTokenKey = tokenKeyFactory.newKey(data.username);
+	public CompletionStage<Response> modifyUserRole(UserData data) {
+		return AppExecutors.async(() -> doModifyUserRole(data));
+	}
+	
+	private Response doModifyUserRole(UserData data) {
+		Key userKey = keys.userKey(data.username);
+		Key profileKey = keys.profileKey(data.username);
+		Key tokenKey = keys.tokenKey(data.at.username);
+		Key oldTokenKey = keys.tokenKey(data.username);
 		
-		try {
-			Entity user = txn.get(userKey);
-			Entity profile = txn.get(oldProfileKey);
-			Entity token = txn.get(tokenKey);
-			Entity oldToken = txn.get(oldTokenKey);
+		return transactions.run(txn -> {
+			EntityLoader loader = new EntityLoader(txn).add(userKey, profileKey, oldTokenKey);
+			if(tokenVerifier.needsLookup(data.at))
+				loader.add(tokenKey);
+			
+			Entity user = loader.get(userKey);
+			Entity profile = loader.get(profileKey);
+			AuthToken token = tokenVerifier.verify(data.at, () -> loader.get(tokenKey));
+			Entity oldToken = loader.get(oldTokenKey);
 			
-			if(token != null && data.at.isValid(token.getLong("expirationData")) && data.at.tokenID.equals(token.getString("id"))) {
+			if(token != null) {
 				if(user == null) {
 					txn.rollback();
 					return Response.status(Status.FORBIDDEN).entity("User with username " + data.username + " does not exist.").build();
 				}
 				
-				String role = token.getString("role");
+				String role = token.role;
 				if( profile.getString("role").equals("U") && ( (data.role.equals("GBO") && (role.equals("GA") || role.equals("SU")))
 						|| (data.role.equals("GA") && role.equals("SU"))) ) {
-					Entity newProfile = Entity.newBuilder(newProfileKey)
-							.set("profile",  profile.getString("profile"))
-							.set("role", data.role)
-							.set("state", profile.getString("state"))
-							.set("landline", profile.getString("landline"))
-							.set("mobilePhone", profile.getString("mobilePhone"))
-							.set("address", profile.getString("address"))
-							.set("complementAddress", profile.getString("complementAddress"))
-							.set("locality", profile.getString("locality"))
-							.build();		
-					
-					txn.delete(oldProfileKey);
-					txn.add(newProfile);
-					if(oldToken != null) {
-						Entity newToken = Entity.newBuilder(newTokenKey)
-								.set("username", oldToken.getString("username"))
-								.set("id", oldToken.getString("id"))
-								.set("role", data.role)
-								.set("creationData",oldToken.getLong("creationData"))
-								.set("expirationData", oldToken.getLong("expirationData"))
-								.build();
-						txn.delete(oldTokenKey);
-						txn.add(newToken);
-					}
+					txn.put(new EntityPatch(profile).set("role", data.role).build());
+					if(oldToken != null)
+						txn.put(new EntityPatch(oldToken).set("role", data.role).build());
+					tokenVerifier.revokeUser(txn, data.username);
 					txn.commit();
+					tokenVerifier.userChanged(data.username);
+					auditLog.record(AuditEvent.ROLE, data.at.username, data.username, data.role);
 					
 					return Response.ok().entity( data.username + " role updated to role " + data.role + ".").build();
 				} else {
@@ -280,35 +334,31 @@ public class UserResource {
 				txn.rollback();
 				return Response.status(Status.FORBIDDEN).entity("User not logged.").build();
 			}
-		} catch( Exception e ) {
-            txn.rollback();
-            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
-		} finally {
-			if(txn.isActive())
-				txn.rollback();
-		}
+		});
 	}
 	
 	@POST
 	@Path("/state")
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response modifyUserState(UserData data) {
-		Transaction txn = datastore.newTransaction();
-		Key userKey = userKeyFactory.newKey(data.username);
-		Key oldProfileKey = datastore.newKeyFactory()
-				.addAncestors(PathElement.of("User", data.username))
-				.setKind("Profile").newKey(data.username);
-		Key newProfileKey = datastore.newKeyFactory()
-				.addAncestors(PathElement.of("User", data.username))
-				.setKind("Profile").newKey(data.username);
-		Key tokenKey = tokenKeyFactory.newKey(data.at.username);
+	public CompletionStage<Response> modifyUserState(UserData data) {
+		return AppExecutors.async(() -> doModifyUserState(data));
+	}
+	
+	private Response doModifyUserState(UserData data) {
+		Key userKey = keys.userKey(data.username);
+		Key profileKey = keys.profileKey(data.username);
+		Key tokenKey = keys.tokenKey(data.at.username);
 		
-		try {
-			Entity user = txn.get(userKey);
-			Entity profile = txn.get(oldProfileKey);
-			Entity token = txn.get(tokenKey);
+		return transactions.run(txn -> {
+			EntityLoader loader = new EntityLoader(txn).add(userKey, profileKey);
+			if(tokenVerifier.needsLookup(data.at))
+				loader.add(tokenKey);
+			
+			Entity user = loader.get(userKey);
+			Entity profile = loader.get(profileKey);
+			AuthToken token = tokenVerifier.verify(data.at, () -> loader.get(tokenKey));
 			
-			if(token != null && data.at.isValid(token.getLong("expirationData")) && data.at.tokenID.equals(token.getString("id"))) {
+			if(token != null) {
 			
 			if(user == null) {
 				txn.rollback();
@@ -316,21 +366,17 @@ public class UserResource {
 			}
 			
 			
-				if(data.validStateChange(data.at.role, profile.getString("role"))) {
-					Entity newProfile = Entity.newBuilder(newProfileKey)
-							.set("profile",  profile.getString("profile"))
-							.set("role", profile.getString("role"))
-							.set("state", data.state)
-							.set("landline", profile.getString("landline"))
-							.set("mobilePhone", profile.getString("mobilePhone"))
-							.set("address", profile.getString("address"))
-							.set("complementAddress", profile.getString("complementAddress"))
-							.set("locality", profile.getString("locality"))
-							.build();		
+				if(data.validStateChange(token.role, profile.getString("role"))) {
+					EntityPatch newProfile = new EntityPatch(profile).set("state", data.state);
 					
-					txn.delete(oldProfileKey);
-					txn.add(newProfile);
+					if(!newProfile.isChanged()) {
+						txn.rollback();
+						return Response.ok().entity( data.username + " state updated.").build();
+					}
+					
+					txn.put(newProfile.build());
 					txn.commit();
+					auditLog.record(AuditEvent.STATE, data.at.username, data.username, data.state);
 					
 					return Response.ok().entity( data.username + " state updated.").build();
 				} else {
@@ -344,37 +390,48 @@ public class UserResource {
 			}
 			
 			
-		} catch( Exception e ) {
-	        txn.rollback();
-	        return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
-		} finally {
-			if(txn.isActive())
-				txn.rollback();
-		}
+		});
 	}
 	
 	@POST
 	@Path("/newPassword")
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response modifyUserPassword(UserData data) {
-		Transaction txn = datastore.newTransaction();
-		Key oldUserKey = userKeyFactory.newKey(data.at.username);
-		Key newUserKey = userKeyFactory.newKey(data.at.username);
-		Key tokenKey = tokenKeyFactory.newKey(data.at.username);
+	public CompletionStage<Response> modifyUserPassword(UserData data) {
+		return AppExecutors.async(() -> doModifyUserPassword(data));
+	}
+	
+	private Response doModifyUserPassword(UserData data) {
+		Key userKey = keys.userKey(data.at.username);
+		Key tokenKey = keys.tokenKey(data.at.username);
 		
-		try {
+		// the new password is hashed while the transaction reads, and only once however often it is retried
+		CompletableFuture<String> hash = null;
+		if(data.password != null && data.password.length() >= 6 && data.password.equals(data.confirmation)) {
+			try {
+				hash = passwordHasher.hashAsync(data.password);
+			} catch( RejectedExecutionException e ) {
+				return AppExecutors.busy();
+			}
+		}
+		CompletableFuture<String> newHash = hash;
+		
+		return transactions.run(txn -> {
+			
+			EntityLoader loader = new EntityLoader(txn).add(userKey);
+			if(tokenVerifier.needsLookup(data.at))
+				loader.add(tokenKey);
 			
-			Entity user = txn.get(oldUserKey);
-			Entity token = txn.get(tokenKey);
+			Entity user = loader.get(userKey);
+			AuthToken token = tokenVerifier.verify(data.at, () -> loader.get(tokenKey));
 			
-			if(token != null && data.at.isValid(token.getLong("expirationData")) && data.at.tokenID.equals(token.getString("id"))) {
+			if(token != null) {
 			
 				if(data.oldPassword == null || data.password == null || data.confirmation == null ) {
 					txn.rollback();
 					return Response.status(Status.FORBIDDEN).entity("Null password(s).").build();
 				}
 				
-				if(!DigestUtils.sha512Hex(data.oldPassword).equals(user.getString("password"))) {
+				if(!passwordHasher.verify(data.oldPassword, user.getString("password"))) {
 					txn.rollback();
 					return Response.status(Status.FORBIDDEN).entity("Old password incorrect.").build();
 				}
@@ -390,15 +447,16 @@ public class UserResource {
 				}
 				
 				
-				Entity newUser = Entity.newBuilder(newUserKey)
-						.set("password", DigestUtils.sha512Hex(data.password))
-						.set("email", user.getString("email"))
-						.set("creation_timestamp", user.getString("creation_timestamp"))
-						.build();
+				EntityPatch newUser = new EntityPatch(user).set("password", PasswordHasher.await(newHash));
 				
-				txn.delete(oldUserKey);
-				txn.add(newUser);
+				if(!newUser.isChanged()) {
+					txn.rollback();
+					return Response.ok().entity( data.at.username + " password updated.").build();
+				}
+				
+				txn.put(newUser.build());
 				txn.commit();
+				auditLog.record(AuditEvent.PASSWORD, data.at.username, data.at.username, null);
 				
 				return Response.ok().entity( data.at.username + " password updated.").build();
 				
@@ -408,112 +466,192 @@ public class UserResource {
 			}
 			
 			
-		} catch( Exception e ) {
-	        txn.rollback();
-	        return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
-		} finally {
-			if(txn.isActive())
-				txn.rollback();
-		}
+		});
 	}
 	
 	@POST
 	@Path("/attribute")
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response getUserAttribute(UserData data) {
-		Key userKey = userKeyFactory.newKey(data.username);
-		Key profileKey = datastore.newKeyFactory()
-				.addAncestors(PathElement.of("User", data.username))
-				.setKind("Profile").newKey(data.username); 
-		Transaction txn = datastore.newTransaction();
-		Key tokenKey = tokenKeyFactory.newKey(data.at.username);
+	public CompletionStage<Response> getUserAttribute(UserData data) {
+		return AppExecutors.async(() -> doGetUserAttribute(data));
+	}
+	
+	private Response doGetUserAttribute(UserData data) {
+		Key userKey = keys.userKey(data.username);
+		Key profileKey = keys.profileKey(data.username); 
+		Key tokenKey = keys.tokenKey(data.at.username);
 		
+		// Read only, so no transaction: the entities come from memcache when it has them
 		try {
 			
-			Entity user = txn.get(userKey);
-			Entity profile = txn.get(profileKey);
-			Entity token = txn.get(tokenKey);
+			EntityLoader loader = new EntityLoader(sharedCache.reader(datastore)).add(userKey, profileKey);
+			if(tokenVerifier.needsLookup(data.at))
+				loader.add(tokenKey);
 			
-			if(token != null && data.at.isValid(token.getLong("expirationData")) && data.at.tokenID.equals(token.getString("id"))) {
+			Entity user = loader.get(userKey);
+			Entity profile = loader.get(profileKey);
+			AuthToken token = tokenVerifier.verify(data.at, () -> loader.get(tokenKey));
+			
+			if(token != null) {
 				
-				if(user == null) {
-					txn.rollback();
+				if(user == null)
 					return Response.status(Status.FORBIDDEN).entity("User with username " + data.username + " does not exist.").build();
-				}
 				
-				String role = token.getString("role");
-				if(!role.equals("GBO") && !role.equals("GA") && !role.equals("SU")) {
-					txn.rollback();
+				String role = token.role;
+				if(!role.equals("GBO") && !role.equals("GA") && !role.equals("SU"))
 					return Response.status(Status.FORBIDDEN).entity("User not allowed to do this operation.").build();
-				}
 				
-				return Response.ok(g.toJson(user) + "\n" + g.toJson(profile)).build();
+				return Response.ok(UserAttributes.fromEntities(user, profile)).build();
 				
 			} else {
-				txn.rollback();
 				return Response.status(Status.FORBIDDEN).entity("User not logged.").build();
 			}
 			
 		} catch( Exception e ) {
-	        txn.rollback();
-	        return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
-		} finally {
-			if(txn.isActive())
-				txn.rollback();
+			LOG.log(Level.SEVERE, "Attribute lookup failed", e);
+			return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
+		}
+	}
+	
+	@POST
+	@Path("/attributes")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public CompletionStage<Response> getUserAttributes(AttributesData data) {
+		return AppExecutors.async(() -> doGetUserAttributes(data));
+	}
+	
+	/**
+	 * The attributes of several users, as a JSON array written as the lookups
+	 * finish. The token is checked once, then the users are read in chunks of
+	 * ATTRIBUTES_CHUNK_SIZE, in parallel and without a transaction, so the
+	 * response takes about as long as the slowest chunk. Users that do not
+	 * exist are left out.
+	 */
+	private Response doGetUserAttributes(AttributesData data) {
+		if(data.at == null || data.usernames == null) {
+			return Response.status(Status.BAD_REQUEST).entity("Missing token or usernames.").build();
+		}
+		
+		if(data.usernames.size() > AttributesData.MAX_USERNAMES) {
+			return Response.status(Status.BAD_REQUEST).entity("At most " + AttributesData.MAX_USERNAMES + " users per request.").build();
+		}
+		
+		List<Future<List<UserAttributes>>> chunks = new ArrayList<>();
+		try {
+			AuthToken token = tokenVerifier.verify(data.at, () -> datastore.get(keys.tokenKey(data.at.username)));
+			
+			if(token == null) {
+				return Response.status(Status.FORBIDDEN).entity("User not logged.").build();
+			}
+			
+			String role = token.role;
+			if(!role.equals(UserData.BACKOFFICE) && !role.equals(UserData.BACKEND) && !role.equals(UserData.SUPER)) {
+				return Response.status(Status.FORBIDDEN).entity("User not allowed to do this operation.").build();
+			}
+			
+			List<String> usernames = new ArrayList<>(new LinkedHashSet<>(data.usernames));
+			CompletionService<List<UserAttributes>> lookups = new ExecutorCompletionService<>(AppExecutors.lookup());
+			for(int i = 0; i < usernames.size(); i += ATTRIBUTES_CHUNK_SIZE) {
+				List<String> chunk = usernames.subList(i, Math.min(i + ATTRIBUTES_CHUNK_SIZE, usernames.size()));
+				Supplier<List<UserAttributes>> lookup = AppExecutors.propagate(() -> attributesChunk(chunk));
+				chunks.add(lookups.submit(lookup::get));
+			}
+			
+			StreamingOutput stream = out -> {
+				try {
+					JsonGenerator json = JsonMapper.get().getFactory().createGenerator(out);
+					json.writeStartArray();
+					for(int i = 0; i < chunks.size(); i++) {
+						for(UserAttributes attributes : lookups.take().get())
+							JsonMapper.get().writeValue(json, attributes);
+						json.flush();
+					}
+					json.writeEndArray();
+					json.flush();
+				} catch( InterruptedException | ExecutionException e ) {
+					// the status is already sent, cutting the array short tells the client
+					LOG.log(Level.SEVERE, "Attribute lookups failed", e);
+					throw new IOException("Attribute lookups failed", e);
+				} finally {
+					for(Future<List<UserAttributes>> chunk : chunks)
+						chunk.cancel(true);
+				}
+			};
+			return Response.ok(stream).build();
+			
+		} catch( RejectedExecutionException e ) {
+			for(Future<List<UserAttributes>> chunk : chunks)
+				chunk.cancel(true);
+			return AppExecutors.busy();
+		} catch( Exception e ) {
+			LOG.log(Level.SEVERE, "Attribute lookups failed", e);
+			return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
+		}
+	}
+	
+	/**
+	 * Reads the User and Profile entities of a chunk of users with one lookup.
+	 */
+	private List<UserAttributes> attributesChunk(List<String> usernames) {
+		EntityLoader loader = new EntityLoader(sharedCache.reader(datastore));
+		for(String username : usernames)
+			loader.add(keys.userKey(username), keys.profileKey(username));
+		
+		List<UserAttributes> results = new ArrayList<>(usernames.size());
+		for(String username : usernames) {
+			Entity user = loader.get(keys.userKey(username));
+			if(user != null)
+				results.add(UserAttributes.fromEntities(user, loader.get(keys.profileKey(username))));
 		}
+		return results;
 	}
 	
 	@DELETE
 	@Path("/disable")
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response disableUser(UserData data) {
-		Key userKey = userKeyFactory.newKey(data.username);
-		Key oldProfileKey = datastore.newKeyFactory()
-				.addAncestors(PathElement.of("User", data.username))
-				.setKind("Profile").newKey(data.username);
-		Key newProfileKey = datastore.newKeyFactory()
-				.addAncestors(PathElement.of("User", data.username))
-				.setKind("Profile").newKey(data.username);
-		Key tokenKey = tokenKeyFactory.newKey(data.at.username);
-		Key tokenToRmKey = tokenKeyFactory.newKey(data.username);
-		Transaction txn = datastore.newTransaction();
+	public CompletionStage<Response> disableUser(UserData data) {
+		return AppExecutors.async(() -> doDisableUser(data));
+	}
+	
+	private Response doDisableUser(UserData data) {
+		Key userKey = keys.userKey(data.username);
+		Key profileKey = keys.profileKey(data.username);
+		Key tokenKey = keys.tokenKey(data.at.username);
+		Key tokenToRmKey = keys.tokenKey(data.username);
 		
-		try {
+		return transactions.run(txn -> {
 			
-			Entity user = txn.get(userKey);
-			Entity profile = txn.get(oldProfileKey);
-			Entity token = txn.get(tokenKey);
-			Entity tokenToRm = txn.get(tokenToRmKey);
+			EntityLoader loader = new EntityLoader(txn).add(userKey, profileKey, tokenToRmKey);
+			if(tokenVerifier.needsLookup(data.at))
+				loader.add(tokenKey);
 			
-			if(token != null && data.at.isValid(token.getLong("expirationData")) && data.at.tokenID.equals(token.getString("id"))) {
+			Entity user = loader.get(userKey);
+			Entity profile = loader.get(profileKey);
+			AuthToken token = tokenVerifier.verify(data.at, () -> loader.get(tokenKey));
+			Entity tokenToRm = loader.get(tokenToRmKey);
+			
+			if(token != null) {
 				
 				if(user == null) {
 					txn.rollback();
 					return Response.status(Status.FORBIDDEN).entity("User with username " + data.username + " does not exist.").build();
 				}
 				
-				if(!data.at.role.equals("GA") && !data.at.role.equals("SU")){
+				if(!token.role.equals("GA") && !token.role.equals("SU")){
 					txn.rollback();
 					return Response.status(Status.FORBIDDEN).entity("User not allowed to do this operation").build();
 				}
 	
 				if(profile.getString("state").equals("ENABLED")) {
-					Entity newProfile = Entity.newBuilder(newProfileKey)
-							.set("profile",  profile.getString("profile"))
-							.set("role", profile.getString("role"))
-							.set("state", "DISABLED")
-							.set("landline", profile.getString("landline"))
-							.set("mobilePhone", profile.getString("mobilePhone"))
-							.set("address", profile.getString("address"))
-							.set("complementAddress", profile.getString("complementAddress"))
-							.set("locality", profile.getString("locality"))
-							.build();		
+					Entity newProfile = new EntityPatch(profile).set("state", "DISABLED").build();
 					
-					txn.delete(oldProfileKey);
 					if(tokenToRm != null)
 						txn.delete(tokenToRmKey);
-					txn.add(newProfile);
+					txn.put(newProfile);
+					tokenVerifier.revokeUser(txn, data.username);
 					txn.commit();
+					tokenVerifier.userChanged(data.username);
+					auditLog.record(AuditEvent.DISABLE, data.at.username, data.username, null);
 					
 					return Response.ok().entity( data.username + " disabled.").build();
 					
@@ -527,13 +665,337 @@ public class UserResource {
 				return Response.status(Status.FORBIDDEN).entity("User not logged.").build();
 			}	
 			
+		});
+	}
+	
+	@POST
+	@Path("/list")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public CompletionStage<Response> listUsers(ListData data) {
+		return AppExecutors.async(() -> doListUsers(data));
+	}
+	
+	/**
+	 * Lists users by their Profile properties, one page per request. Filtered
+	 * properties are known from the filter, so only the others are projected;
+	 * with every property filtered the query is keys-only. Pages are resumed
+	 * from a Datastore cursor, so each page costs the same however deep it is.
+	 */
+	private Response doListUsers(ListData data) {
+		if(data.at == null) {
+			return Response.status(Status.BAD_REQUEST).entity("Missing token.").build();
+		}
+		
+		int limit = data.pageSize();
+		if(limit < 1 || limit > ListData.MAX_LIMIT) {
+			return Response.status(Status.BAD_REQUEST).entity("Limit must be between 1 and " + ListData.MAX_LIMIT + ".").build();
+		}
+		
+		Cursor cursor = null;
+		if(data.cursor != null) {
+			try {
+				cursor = Cursor.fromUrlSafe(data.cursor);
+			} catch( RuntimeException e ) {
+				return Response.status(Status.BAD_REQUEST).entity("Invalid cursor.").build();
+			}
+		}
+		
+		try {
+			AuthToken token = tokenVerifier.verify(data.at, () -> datastore.get(keys.tokenKey(data.at.username)));
+			
+			if(token == null) {
+				return Response.status(Status.FORBIDDEN).entity("User not logged.").build();
+			}
+			
+			if(!token.role.equals(UserData.BACKOFFICE) && !token.role.equals(UserData.BACKEND) && !token.role.equals(UserData.SUPER)) {
+				return Response.status(Status.FORBIDDEN).entity("User not allowed to do this operation.").build();
+			}
+			
+			Map<String, String> filters = data.filters();
+			List<String> projection = new ArrayList<>();
+			for(String property : ListData.PROPERTIES) {
+				if(!filters.containsKey(property))
+					projection.add(property);
+			}
+			
+			UserPage page = new UserPage();
+			QueryResults<?> results;
+			if(projection.isEmpty()) {
+				KeyQuery.Builder query = Query.newKeyQueryBuilder().setKind("Profile").setLimit(limit);
+				query.setFilter(profileFilter(filters));
+				if(cursor != null)
+					query.setStartCursor(cursor);
+				results = datastore.run(query.build());
+			} else {
+				ProjectionEntityQuery.Builder query = Query.newProjectionEntityQueryBuilder().setKind("Profile").setLimit(limit)
+						.setProjection(projection.get(0), projection.subList(1, projection.size()).toArray(new String[0]));
+				if(!filters.isEmpty())
+					query.setFilter(profileFilter(filters));
+				if(cursor != null)
+					query.setStartCursor(cursor);
+				results = datastore.run(query.build());
+			}
+			
+			while(results.hasNext()) {
+				Object result = results.next();
+				UserPage.Entry entry = new UserPage.Entry();
+				if(result instanceof Key) {
+					entry.username = ((Key) result).getName();
+				} else {
+					ProjectionEntity profile = (ProjectionEntity) result;
+					entry.username = profile.getKey().getName();
+					for(String property : projection)
+						entry.set(property, profile.getString(property));
+				}
+				for(Map.Entry<String, String> filter : filters.entrySet())
+					entry.set(filter.getKey(), filter.getValue());
+				page.users.add(entry);
+			}
+			
+			if(page.users.size() == limit && results.getMoreResults() != MoreResultsType.NO_MORE_RESULTS)
+				page.cursor = results.getCursorAfter().toUrlSafe();
+			
+			return Response.ok(page).build();
+			
 		} catch( Exception e ) {
-	        txn.rollback();
-	        return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
-		} finally {
-			if(txn.isActive())
-				txn.rollback();
+			LOG.log(Level.SEVERE, "User listing failed", e);
+			return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
+		}
+	}
+	
+	private static Filter profileFilter(Map<String, String> filters) {
+		List<Filter> equalities = new ArrayList<>();
+		for(Map.Entry<String, String> filter : filters.entrySet())
+			equalities.add(PropertyFilter.eq(filter.getKey(), filter.getValue()));
+		
+		if(equalities.size() == 1)
+			return equalities.get(0);
+		return CompositeFilter.and(equalities.get(0), equalities.subList(1, equalities.size()).toArray(new Filter[0]));
+	}
+	
+	@POST
+	@Path("/suggest")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public CompletionStage<Response> suggest(SuggestData data) {
+		return AppExecutors.async(() -> doSuggest(data));
+	}
+	
+	/**
+	 * Type-ahead over usernames or localities, answered from the in-memory
+	 * prefix index.
+	 */
+	private Response doSuggest(SuggestData data) {
+		if(data.at == null || data.prefix == null || data.field == null) {
+			return Response.status(Status.BAD_REQUEST).entity("Missing token, field or prefix.").build();
+		}
+		
+		int limit = data.suggestions();
+		if(limit < 1 || limit > SuggestData.MAX_LIMIT) {
+			return Response.status(Status.BAD_REQUEST).entity("Limit must be between 1 and " + SuggestData.MAX_LIMIT + ".").build();
+		}
+		
+		try {
+			AuthToken token = tokenVerifier.verify(data.at, () -> datastore.get(keys.tokenKey(data.at.username)));
+			
+			if(token == null) {
+				return Response.status(Status.FORBIDDEN).entity("User not logged.").build();
+			}
+			
+			if(!token.role.equals(UserData.BACKOFFICE) && !token.role.equals(UserData.BACKEND) && !token.role.equals(UserData.SUPER)) {
+				return Response.status(Status.FORBIDDEN).entity("User not allowed to do this operation.").build();
+			}
+			
+			switch(data.field) {
+			case SuggestData.USERNAME:
+				return Response.ok(suggestIndex.usernames(data.prefix, limit)).build();
+			case SuggestData.LOCALITY:
+				return Response.ok(suggestIndex.localities(data.prefix, limit)).build();
+			default:
+				return Response.status(Status.BAD_REQUEST).entity("Field must be " + SuggestData.USERNAME + " or " + SuggestData.LOCALITY + ".").build();
+			}
+			
+		} catch( Exception e ) {
+			LOG.log(Level.SEVERE, "Suggestions failed", e);
+			return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
+		}
+	}
+	
+	@POST
+	@Path("/bulk")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public CompletionStage<Response> bulkOperation(BulkData data) {
+		return AppExecutors.async(() -> doBulkOperation(data));
+	}
+	
+	private Response doBulkOperation(BulkData data) {
+		if(data.at == null || data.usernames == null || !data.validOperation()) {
+			return Response.status(Status.BAD_REQUEST).entity("Missing token, usernames or valid operation.").build();
+		}
+		
+		if(data.usernames.size() > BulkData.MAX_USERNAMES) {
+			return Response.status(Status.BAD_REQUEST).entity("At most " + BulkData.MAX_USERNAMES + " users per request.").build();
+		}
+		
+		try {
+			AuthToken token = tokenVerifier.verify(data.at, () -> datastore.get(keys.tokenKey(data.at.username)));
+			
+			if(token == null) {
+				return Response.status(Status.FORBIDDEN).entity("User not logged.").build();
+			}
+			
+			if(!token.role.equals(UserData.BACKOFFICE) && !token.role.equals(UserData.BACKEND) && !token.role.equals(UserData.SUPER)) {
+				return Response.status(Status.FORBIDDEN).entity("User not allowed to do this operation.").build();
+			}
+			
+			List<String> usernames = new ArrayList<>(new LinkedHashSet<>(data.usernames));
+			List<Future<List<BulkResult.Entry>>> chunks = new ArrayList<>();
+			for(int i = 0; i < usernames.size(); i += BULK_CHUNK_SIZE) {
+				List<String> chunk = usernames.subList(i, Math.min(i + BULK_CHUNK_SIZE, usernames.size()));
+				try {
+					chunks.add(CompletableFuture.supplyAsync(AppExecutors.propagate(() -> bulkChunk(token, data, chunk)), AppExecutors.bulk()));
+				} catch( RejectedExecutionException e ) {
+					if(chunks.isEmpty())
+						return AppExecutors.busy();
+					// earlier chunks are already running, report these users as not done
+					chunks.add(CompletableFuture.completedFuture(failedChunk(chunk, "Server busy, try again later.")));
+				}
+			}
+			
+			BulkResult result = new BulkResult(data.operation);
+			for(Future<List<BulkResult.Entry>> chunk : chunks) {
+				for(BulkResult.Entry entry : chunk.get())
+					result.add(entry);
+			}
+			
+			return Response.ok(result).build();
+			
+		} catch( Exception e ) {
+			LOG.log(Level.SEVERE, "Bulk " + data.operation + " failed", e);
+			return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
+		}
+	}
+	
+	/**
+	 * Applies a bulk operation to a chunk of users in a single transaction.
+	 */
+	private List<BulkResult.Entry> bulkChunk(AuthToken token, BulkData data, List<String> usernames) {
+		try {
+			return transactions.call(txn -> applyBulkChunk(txn, token, data, usernames));
+		} catch( Exception e ) {
+			LOG.log(Level.WARNING, "Bulk " + data.operation + " chunk failed", e);
+			String message = e instanceof TransactionRunner.ContentionException ? "Too much contention, try again later."
+					: e instanceof TransactionRunner.CommitUnknownException ? "Could not confirm the change, check before trying again." : "Something broke.";
+			return failedChunk(usernames, message);
+		}
+	}
+	
+	private List<BulkResult.Entry> failedChunk(List<String> usernames, String message) {
+		List<BulkResult.Entry> results = new ArrayList<>(usernames.size());
+		for(String username : usernames)
+			results.add(new BulkResult.Entry(username, false, message));
+		return results;
+	}
+	
+	private List<BulkResult.Entry> applyBulkChunk(Transaction txn, AuthToken token, BulkData data, List<String> usernames) {
+		Map<String, String> errors = new HashMap<>();
+		List<String> changed = new ArrayList<>();
+		EntityLoader loader = new EntityLoader(txn);
+		for(String username : usernames)
+			loader.add(keys.userKey(username), keys.profileKey(username), keys.tokenKey(username));
+		
+		for(String username : usernames) {
+			String error = bulkApply(txn, loader, token, data, username);
+			if(error == null)
+				changed.add(username);
+			else
+				errors.put(username, error);
+		}
+		
+		if(changed.isEmpty())
+			txn.rollback();
+		else
+			txn.commit();
+		
+		for(String username : changed) {
+			tokenVerifier.userChanged(username);
+			if(data.operation.equals(BulkData.DELETE))
+				suggestIndex.remove(username);
+			// the bulk operations are named like the audit event types
+			auditLog.record(data.operation, token.username, username, data.operation.equals(BulkData.ROLE) ? data.role
+					: data.operation.equals(BulkData.STATE) ? data.state : null);
+		}
+		
+		List<BulkResult.Entry> results = new ArrayList<>(usernames.size());
+		for(String username : usernames) {
+			String error = errors.get(username);
+			results.add(new BulkResult.Entry(username, error == null, error == null ? "Done." : error));
+		}
+		return results;
+	}
+	
+	/**
+	 * Applies a bulk operation to one user, following the same rules as the
+	 * single user endpoints. Returns null on success or the reason it was refused.
+	 */
+	private String bulkApply(Transaction txn, EntityLoader loader, AuthToken token, BulkData data, String username) {
+		Key userKey = keys.userKey(username);
+		Key profileKey = keys.profileKey(username);
+		Key tokenKey = keys.tokenKey(username);
+		Entity user = loader.get(userKey);
+		Entity profile = loader.get(profileKey);
+		Entity userToken = loader.get(tokenKey);
+		String role = token.role;
+		
+		if(user == null || profile == null)
+			return "User with username " + username + " does not exist.";
+		
+		switch(data.operation) {
+		case BulkData.DISABLE:
+			if(!role.equals(UserData.BACKEND) && !role.equals(UserData.SUPER))
+				return "User not allowed to do this operation";
+			if(!profile.getString("state").equals(UserData.ENABLED))
+				return "User " + username + " already disabled.";
+			
+			txn.put(new EntityPatch(profile).set("state", UserData.DISABLED).build());
+			if(userToken != null)
+				txn.delete(tokenKey);
+			tokenVerifier.revokeUser(txn, username);
+			return null;
+			
+		case BulkData.ROLE:
+			if(data.role == null || !profile.getString("role").equals(UserData.USER)
+					|| !((data.role.equals(UserData.BACKOFFICE) && (role.equals(UserData.BACKEND) || role.equals(UserData.SUPER)))
+							|| (data.role.equals(UserData.BACKEND) && role.equals(UserData.SUPER))))
+				return "No permisson to change role.";
+			
+			txn.put(new EntityPatch(profile).set("role", data.role).build());
+			if(userToken != null)
+				txn.put(new EntityPatch(userToken).set("role", data.role).build());
+			tokenVerifier.revokeUser(txn, username);
+			return null;
+			
+		case BulkData.STATE:
+			if(data.state == null || !data.validStateChange(role, profile.getString("role")))
+				return data.at.username + " not permited to change state of " + username;
+			
+			EntityPatch newProfile = new EntityPatch(profile).set("state", data.state);
+			if(newProfile.isChanged())
+				txn.put(newProfile.build());
+			return null;
+			
+		case BulkData.DELETE:
+			if(username.equals(data.at.username))
+				return data.at.username + " doesn't have permisson to remove this user";
+			
+			txn.delete(userKey, profileKey);
+			if(userToken != null)
+				txn.delete(tokenKey);
+			tokenVerifier.revokeUser(txn, username);
+			return null;
+			
+		default:
+			return "Unknown operation " + data.operation;
 		}
 	}
 	
-}
+}
\ No newline at end of file
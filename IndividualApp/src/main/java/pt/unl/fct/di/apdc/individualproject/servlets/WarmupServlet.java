@@ -0,0 +1,56 @@
+package pt.unl.fct.di.apdc.individualproject.servlets;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.cloud.datastore.Datastore;
+
+import pt.unl.fct.di.apdc.individualproject.util.AuthToken;
+import pt.unl.fct.di.apdc.individualproject.util.JsonMapper;
+import pt.unl.fct.di.apdc.individualproject.util.Keys;
+import pt.unl.fct.di.apdc.individualproject.util.Storage;
+import pt.unl.fct.di.apdc.individualproject.util.SuggestIndex;
+import pt.unl.fct.di.apdc.individualproject.util.TokenVerifier;
+
+/**
+ * Handles App Engine's /_ah/warmup request, creating the shared Datastore
+ * client, opening its connections and loading the JSON mappers before the
+ * instance receives real traffic.
+ */
+public class WarmupServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+	private static final Logger LOG = Logger.getLogger(WarmupServlet.class.getName());
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		long start = System.currentTimeMillis();
+
+		Datastore datastore = Storage.getDatastore();
+		Keys keys = Storage.getKeys();
+		TokenVerifier.getInstance();
+		try {
+			// First RPC opens the connection to the Datastore
+			datastore.get(keys.userKey("_warmup"));
+		} catch(Exception e) {
+			LOG.log(Level.WARNING, "Warmup read failed", e);
+		}
+		// Build the type-ahead index before the first /user/suggest needs it
+		SuggestIndex.getInstance().rebuild();
+
+		AuthToken at = new AuthToken("_warmup", "U");
+		JsonMapper.get().writeValueAsString(at);
+
+		long end = System.currentTimeMillis();
+		long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+		LOG.info("Warmup done in " + (end - start) + "ms, " + (end - jvmStart) + "ms after JVM start.");
+		resp.setStatus(HttpServletResponse.SC_OK);
+	}
+
+}
@@ -0,0 +1,218 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive concurrency limits for the three classes of endpoints: cheap
+ * reads, writes, and heavy work (compute jobs, bulk operations, sweeps and
+ * migrations). Requests over the limit of their class are rejected straight
+ * away rather than queued.
+ * <p>
+ * Each limit follows AIMD while at least half of it is in use: it grows by
+ * one per healthy request and shrinks by a tenth, at most once per
+ * DECREASE_MILLIS, when requests of the class take more than TOLERANCE times
+ * the usual latency of their endpoints on average, or fail with a 5xx. Classes are
+ * ranked: while a class is shedding, the ones below it shed too, so that
+ * reads keep the Datastore and the threads to themselves when those run
+ * short.
+ * <p>
+ * individualproject.admission=false turns it off; the largest limit of a
+ * class is set with individualproject.admission.&lt;class&gt;.max.
+ */
+public class AdmissionControl {
+
+	public static final String ENABLED = "individualproject.admission";
+	public static final String READ = "read";
+	public static final String WRITE = "write";
+	public static final String COMPUTE = "compute";
+
+	public static final double TOLERANCE = 2.0;
+	public static final long DECREASE_MILLIS = 100;
+	/**
+	 * How long a class counts as shedding after it rejected a request.
+	 */
+	public static final long SHEDDING_MILLIS = 1000;
+
+	private static final AdmissionControl INSTANCE = new AdmissionControl(!"false".equals(System.getProperty(ENABLED)));
+
+	private final boolean enabled;
+	private final List<Limiter> limiters = new ArrayList<>();
+
+	public AdmissionControl(boolean enabled) {
+		this.enabled = enabled;
+		// highest priority first
+		limiters.add(new Limiter(READ, 100, Integer.getInteger(ENABLED + "." + READ + ".max", 1000)));
+		limiters.add(new Limiter(WRITE, 50, Integer.getInteger(ENABLED + "." + WRITE + ".max", 500)));
+		limiters.add(new Limiter(COMPUTE, 10, Integer.getInteger(ENABLED + "." + COMPUTE + ".max", 50)));
+	}
+
+	public static AdmissionControl getInstance() {
+		return INSTANCE;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * A new endpoint admitted under the named class.
+	 */
+	public Endpoint endpoint(String className) {
+		for(Limiter limiter : limiters) {
+			if(limiter.name.equals(className))
+				return new Endpoint(limiter);
+		}
+		throw new IllegalArgumentException("No admission class " + className);
+	}
+
+	public List<Limiter> getLimiters() {
+		return Collections.unmodifiableList(limiters);
+	}
+
+	/**
+	 * Takes a slot for a request to the endpoint, or returns false if it has
+	 * to be rejected. A slot taken must be given back with
+	 * {@link Endpoint#release(long, int)}.
+	 */
+	public boolean tryAcquire(Endpoint endpoint) {
+		Limiter limiter = endpoint.limiter;
+		long now = System.currentTimeMillis();
+		for(Limiter higher : limiters) {
+			if(higher == limiter)
+				break;
+			if(higher.isShedding(now)) {
+				limiter.rejected(now);
+				return false;
+			}
+		}
+		if(!limiter.tryAcquire()) {
+			limiter.rejected(now);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * An endpoint and the class it is admitted under. Its latency is compared
+	 * with its own usual latency, so that slow and fast endpoints of a class
+	 * do not look like overload to each other.
+	 */
+	public static class Endpoint {
+		private static final double SLOW = 0.01;
+
+		private final Limiter limiter;
+		private double usualMicros;
+		private long samples;
+
+		Endpoint(Limiter limiter) {
+			this.limiter = limiter;
+		}
+
+		public Limiter getLimiter() {
+			return limiter;
+		}
+
+		/**
+		 * Gives back the slot of a request that took the given time and ended
+		 * with the given status, and adapts the limit of its class.
+		 */
+		public void release(long micros, int status) {
+			double ratio;
+			synchronized(this) {
+				ratio = usualMicros > 0 ? micros / usualMicros : 1;
+				// averages the first samples evenly, then follows slowly so overload does not become usual
+				usualMicros += Math.max(SLOW, 1.0 / ++samples) * (micros - usualMicros);
+			}
+			limiter.release(ratio, status);
+		}
+	}
+
+	public static class Limiter {
+		private static final double FAST = 0.1;
+
+		private final String name;
+		private final int maxLimit;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final LongAdder admitted = new LongAdder();
+		private final LongAdder rejected = new LongAdder();
+		private volatile double limit;
+		private volatile long lastRejected;
+		private double recentRatio = 1;
+		private long lastDecrease;
+
+		Limiter(String name, int initialLimit, int maxLimit) {
+			this.name = name;
+			this.maxLimit = maxLimit;
+			this.limit = Math.min(initialLimit, maxLimit);
+		}
+
+		boolean tryAcquire() {
+			while(true) {
+				int current = inFlight.get();
+				if(current >= (int) limit)
+					return false;
+				if(inFlight.compareAndSet(current, current + 1)) {
+					admitted.increment();
+					return true;
+				}
+			}
+		}
+
+		void rejected(long now) {
+			rejected.increment();
+			lastRejected = now;
+		}
+
+		boolean isShedding(long now) {
+			return now - lastRejected < SHEDDING_MILLIS;
+		}
+
+		/**
+		 * Gives back a slot. The ratio is the request's latency over the usual
+		 * latency of its endpoint.
+		 */
+		void release(double ratio, int status) {
+			int current = inFlight.getAndDecrement();
+			synchronized(this) {
+				recentRatio += FAST * (ratio - recentRatio);
+				// a limit that is not reached is not what makes requests slow
+				if(current * 2 < limit)
+					return;
+				if(status >= 500 || recentRatio > TOLERANCE) {
+					long now = System.currentTimeMillis();
+					if(now - lastDecrease >= DECREASE_MILLIS) {
+						limit = Math.max(1, limit * 0.9);
+						lastDecrease = now;
+					}
+				} else {
+					limit = Math.min(maxLimit, limit + 1);
+				}
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getLimit() {
+			return (int) limit;
+		}
+
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		public long getAdmitted() {
+			return admitted.sum();
+		}
+
+		public long getRejected() {
+			return rejected.sum();
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Environment;
+
+/**
+ * Executors the resources run their work on, so that servlet threads are
+ * released while waiting for the Datastore. Sizes are set with system
+ * properties; individualproject.executors.virtual=true runs Datastore work on
+ * virtual threads when the runtime has them.
+ */
+public class AppExecutors {
+
+	public static final String DATASTORE_THREADS = "individualproject.executors.datastore.threads";
+	public static final String HASHING_THREADS = "individualproject.executors.hashing.threads";
+	public static final String QUEUE_SIZE = "individualproject.executors.queue";
+	public static final String HASHING_QUEUE_SIZE = "individualproject.executors.hashing.queue";
+	public static final String BULK_THREADS = "individualproject.executors.bulk.threads";
+	public static final String BULK_QUEUE_SIZE = "individualproject.executors.bulk.queue";
+	public static final String LOOKUP_THREADS = "individualproject.executors.lookup.threads";
+	public static final String LOOKUP_QUEUE_SIZE = "individualproject.executors.lookup.queue";
+	public static final String VIRTUAL_THREADS = "individualproject.executors.virtual";
+
+	private static final Logger LOG = Logger.getLogger(AppExecutors.class.getName());
+
+	private static final InstrumentedExecutor DATASTORE = new InstrumentedExecutor("datastore",
+			Boolean.getBoolean(VIRTUAL_THREADS) ? virtualOrPool("datastore", Integer.getInteger(DATASTORE_THREADS, 32))
+					: pool("datastore", Integer.getInteger(DATASTORE_THREADS, 32), Integer.getInteger(QUEUE_SIZE, 1000)));
+	// Hashing is CPU bound, keep its queue short so that bursts are shed instead of waiting
+	private static final InstrumentedExecutor HASHING = new InstrumentedExecutor("hashing",
+			pool("hashing", Integer.getInteger(HASHING_THREADS, Runtime.getRuntime().availableProcessors()),
+					Integer.getInteger(HASHING_QUEUE_SIZE, 64)));
+	// Bulk chunks are whole transactions, a few at a time is what the Datastore takes well
+	private static final InstrumentedExecutor BULK = new InstrumentedExecutor("bulk",
+			pool("bulk", Integer.getInteger(BULK_THREADS, 4), Integer.getInteger(BULK_QUEUE_SIZE, 200)));
+	private static final InstrumentedExecutor LOOKUP = new InstrumentedExecutor("lookup",
+			pool("lookup", Integer.getInteger(LOOKUP_THREADS, 8), Integer.getInteger(LOOKUP_QUEUE_SIZE, 400)));
+
+	private AppExecutors() {}
+
+	public static InstrumentedExecutor datastore() {
+		return DATASTORE;
+	}
+
+	public static InstrumentedExecutor hashing() {
+		return HASHING;
+	}
+
+	public static InstrumentedExecutor bulk() {
+		return BULK;
+	}
+
+	/**
+	 * Runs the parallel lookups of requests that read many users at once.
+	 */
+	public static InstrumentedExecutor lookup() {
+		return LOOKUP;
+	}
+
+	/**
+	 * Runs a request handler on the Datastore executor, answering 503 straight
+	 * away if it is saturated.
+	 */
+	public static CompletionStage<Response> async(Supplier<Response> handler) {
+		try {
+			return CompletableFuture.supplyAsync(propagate(handler), DATASTORE);
+		} catch(RejectedExecutionException e) {
+			return CompletableFuture.completedFuture(busy());
+		}
+	}
+
+	/**
+	 * Wraps a task so that it runs with the Datastore statistics and the App
+	 * Engine environment of the calling request, without which App Engine
+	 * APIs such as memcache are unavailable.
+	 */
+	public static <T> Supplier<T> propagate(Supplier<T> task) {
+		Supplier<T> tracked = DatastoreStats.propagate(task);
+		Environment environment = ApiProxy.getCurrentEnvironment();
+		if(environment == null)
+			return tracked;
+		return () -> {
+			Environment previous = ApiProxy.getCurrentEnvironment();
+			ApiProxy.setEnvironmentForCurrentThread(environment);
+			try {
+				return tracked.get();
+			} finally {
+				if(previous != null)
+					ApiProxy.setEnvironmentForCurrentThread(previous);
+				else
+					ApiProxy.clearEnvironmentForCurrentThread();
+			}
+		};
+	}
+
+	public static Response busy() {
+		return Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", 1).entity("Server busy, try again later.").build();
+	}
+
+	private static ExecutorService pool(String name, int threads, int queueSize) {
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), threadFactory(name));
+	}
+
+	private static ExecutorService virtualOrPool(String name, int threads) {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			LOG.info("Running " + name + " work on virtual threads.");
+			return (ExecutorService) factory.invoke(null);
+		} catch(ReflectiveOperationException e) {
+			LOG.warning("Virtual threads not available, using a pool of " + threads + " threads for " + name + " work.");
+			return pool(name, threads, Integer.getInteger(QUEUE_SIZE, 1000));
+		}
+	}
+
+	private static ThreadFactory threadFactory(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+}
@@ -0,0 +1,13 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.List;
+
+public class AttributesData extends UserData {
+	
+	public static final int MAX_USERNAMES = 1000;
+	
+	public List<String> usernames;
+	
+	public AttributesData() {}
+
+}
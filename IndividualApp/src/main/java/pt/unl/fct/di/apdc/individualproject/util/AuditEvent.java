@@ -0,0 +1,34 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+/**
+ * One entry of the audit trail: who did what to which user, and when.
+ */
+public class AuditEvent {
+
+	public static final String REGISTER = "REGISTER";
+	public static final String LOGIN = "LOGIN";
+	public static final String LOGOUT = "LOGOUT";
+	public static final String MODIFY = "MODIFY";
+	public static final String PASSWORD = "PASSWORD";
+	public static final String ROLE = "ROLE";
+	public static final String STATE = "STATE";
+	public static final String DISABLE = "DISABLE";
+	public static final String DELETE = "DELETE";
+
+	public String type;
+	public String actor;
+	public String target;
+	public String detail;
+	public long time;
+
+	public AuditEvent() {}
+
+	public AuditEvent(String type, String actor, String target, String detail) {
+		this.type = type;
+		this.actor = actor;
+		this.target = target;
+		this.detail = detail;
+		this.time = System.currentTimeMillis();
+	}
+
+}
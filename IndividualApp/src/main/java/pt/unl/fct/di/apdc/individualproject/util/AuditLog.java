@@ -0,0 +1,277 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.IncompleteKey;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.StringValue;
+
+/**
+ * Audit trail of the mutations, written to the Datastore as AuditEvent
+ * entities without adding a write to the transactions that make them.
+ * Handlers record an event once they commit; events wait in a bounded
+ * lock-free buffer and a background flusher writes them in batches, when a
+ * batch is full or every flush interval, whichever comes first.
+ * <p>
+ * When the buffer is full, events are appended to a spill file if
+ * individualproject.audit.spill names one, and written from there once the
+ * buffer has drained; otherwise they are dropped. A batch the Datastore
+ * rejects goes back to the buffer for the next flush. Events are written at
+ * least once: a spill file being written when the instance stops is written
+ * again whole.
+ */
+public class AuditLog {
+
+	public static final String CAPACITY = "individualproject.audit.capacity";
+	public static final String BATCH_SIZE = "individualproject.audit.batch";
+	public static final String INTERVAL = "individualproject.audit.interval";
+	public static final String SPILL = "individualproject.audit.spill";
+
+	private static final Logger LOG = Logger.getLogger(AuditLog.class.getName());
+	private static final AuditLog INSTANCE = new AuditLog(Storage.getDatastore(), Integer.getInteger(CAPACITY, 10000),
+			Integer.getInteger(BATCH_SIZE, 200), Long.getLong(INTERVAL, 2000), System.getProperty(SPILL));
+
+	private final Datastore datastore;
+	private final KeyFactory keyFactory;
+	private final int capacity;
+	private final int batchSize;
+	private final Path spill;
+	private final Path draining;
+	private final ConcurrentLinkedQueue<AuditEvent> buffer = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger buffered = new AtomicInteger();
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "audit-flusher");
+		t.setDaemon(true);
+		return t;
+	});
+	private final Object spillLock = new Object();
+	private final LatencyHistogram flushLatency = new LatencyHistogram();
+	private final LongAdder recorded = new LongAdder();
+	private final LongAdder written = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder spilled = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private long droppedLogged;
+
+	public AuditLog(Datastore datastore, int capacity, int batchSize, long intervalMillis, String spill) {
+		this.datastore = datastore;
+		this.keyFactory = datastore.newKeyFactory().setKind("AuditEvent");
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.spill = spill == null ? null : Paths.get(spill);
+		this.draining = spill == null ? null : Paths.get(spill + ".draining");
+		flusher.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "audit-shutdown"));
+	}
+
+	public static AuditLog getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Records an event. Never blocks on the Datastore; call it after the
+	 * change it describes has committed.
+	 */
+	public void record(String type, String actor, String target, String detail) {
+		AuditEvent event = new AuditEvent(type, actor, target, detail);
+		recorded.increment();
+		if(buffered.incrementAndGet() > capacity) {
+			buffered.decrementAndGet();
+			overflow(event);
+			return;
+		}
+		buffer.offer(event);
+		if(buffered.get() >= batchSize && flushRequested.compareAndSet(false, true))
+			flusher.execute(this::flush);
+	}
+
+	/**
+	 * Writes everything buffered, then what was spilled. Runs on the flusher
+	 * thread, and on shutdown.
+	 */
+	public synchronized void flush() {
+		flushRequested.set(false);
+		try {
+			List<AuditEvent> batch;
+			while(!(batch = drain()).isEmpty()) {
+				if(!write(batch)) {
+					for(AuditEvent event : batch)
+						requeue(event);
+					return;
+				}
+			}
+			if(spill != null && buffered.get() < capacity / 2)
+				unspill();
+		} catch(RuntimeException e) {
+			// an exception would cancel the scheduled flushes
+			LOG.log(Level.SEVERE, "Audit flush failed", e);
+		} finally {
+			long drops = dropped.sum();
+			if(drops > droppedLogged) {
+				LOG.warning("Audit buffer full, " + (drops - droppedLogged) + " events dropped.");
+				droppedLogged = drops;
+			}
+		}
+	}
+
+	public int getBuffered() {
+		return buffered.get();
+	}
+
+	public long getRecorded() {
+		return recorded.sum();
+	}
+
+	public long getWritten() {
+		return written.sum();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public long getSpilled() {
+		return spilled.sum();
+	}
+
+	/**
+	 * Batches the Datastore rejected, retried on a later flush.
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * Time to write a batch, in microseconds.
+	 */
+	public LatencyHistogram getFlushLatency() {
+		return flushLatency;
+	}
+
+	private List<AuditEvent> drain() {
+		List<AuditEvent> batch = new ArrayList<>(batchSize);
+		AuditEvent event;
+		while(batch.size() < batchSize && (event = buffer.poll()) != null) {
+			buffered.decrementAndGet();
+			batch.add(event);
+		}
+		return batch;
+	}
+
+	private boolean write(List<AuditEvent> batch) {
+		FullEntity<?>[] entities = new FullEntity<?>[batch.size()];
+		for(int i = 0; i < entities.length; i++)
+			entities[i] = toEntity(batch.get(i));
+		long start = System.nanoTime();
+		try {
+			datastore.put(entities);
+			flushLatency.record((System.nanoTime() - start) / 1000);
+			written.add(batch.size());
+			return true;
+		} catch(DatastoreException e) {
+			failures.increment();
+			LOG.log(Level.WARNING, "Audit batch of " + batch.size() + " events not written, retrying later", e);
+			return false;
+		}
+	}
+
+	private FullEntity<IncompleteKey> toEntity(AuditEvent event) {
+		FullEntity.Builder<IncompleteKey> entity = FullEntity.newBuilder(keyFactory.newKey())
+				.set("type", event.type)
+				.set("time", event.time);
+		if(event.actor != null)
+			entity.set("actor", event.actor);
+		if(event.target != null)
+			entity.set("target", event.target);
+		if(event.detail != null)
+			entity.set("detail", StringValue.newBuilder(event.detail).setExcludeFromIndexes(true).build());
+		return entity.build();
+	}
+
+	private void requeue(AuditEvent event) {
+		if(buffered.incrementAndGet() > capacity) {
+			buffered.decrementAndGet();
+			overflow(event);
+		} else {
+			buffer.offer(event);
+		}
+	}
+
+	private void overflow(AuditEvent event) {
+		if(spill == null) {
+			dropped.increment();
+			return;
+		}
+		synchronized(spillLock) {
+			try(BufferedWriter out = Files.newBufferedWriter(spill, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+				out.write(JsonMapper.get().writeValueAsString(event));
+				out.newLine();
+				spilled.increment();
+			} catch(IOException e) {
+				dropped.increment();
+				LOG.log(Level.WARNING, "Could not spill audit event to " + spill, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the spilled events. The spill file is moved aside first so that
+	 * events spilled meanwhile start a new one.
+	 */
+	private void unspill() {
+		List<AuditEvent> events = new ArrayList<>();
+		try {
+			synchronized(spillLock) {
+				if(!Files.exists(draining)) {
+					if(!Files.exists(spill))
+						return;
+					Files.move(spill, draining);
+				}
+			}
+			for(String line : Files.readAllLines(draining, StandardCharsets.UTF_8)) {
+				if(!line.isEmpty())
+					events.add(JsonMapper.get().readValue(line, AuditEvent.class));
+			}
+		} catch(IOException e) {
+			LOG.log(Level.WARNING, "Could not read spilled audit events from " + draining, e);
+			return;
+		}
+
+		for(int i = 0; i < events.size(); i += batchSize) {
+			List<AuditEvent> batch = events.subList(i, Math.min(i + batchSize, events.size()));
+			if(!write(batch)) {
+				for(AuditEvent event : events.subList(i, events.size()))
+					overflow(event);
+				break;
+			}
+		}
+		try {
+			Files.delete(draining);
+		} catch(IOException e) {
+			LOG.log(Level.WARNING, "Could not delete " + draining + ", its events will be written again", e);
+		}
+	}
+
+}
@@ -1,6 +1,10 @@
 package pt.unl.fct.di.apdc.individualproject.util;
+import java.io.IOException;
+import java.util.Base64;
 import java.util.UUID;
 
+import com.google.cloud.datastore.Entity;
+
 public class AuthToken {
 	
 	public static final long EXPIRATION_TIME = 1000*60*60*2; //2h
@@ -9,6 +13,7 @@ public class AuthToken {
 	public String role;
 	public long creationData;
 	public long expirationData;
+	public String signature;
 	
 	public AuthToken() {}
 	
@@ -20,6 +25,32 @@ public class AuthToken {
 		this.role = role;
 	}
 	
+	public static AuthToken fromEntity(Entity token) {
+		AuthToken at = new AuthToken();
+		at.username = token.getString("username");
+		at.tokenID = token.getString("id");
+		at.role = token.getString("role");
+		at.creationData = token.getLong("creationData");
+		at.expirationData = token.getLong("expirationData");
+		return at;
+	}
+	
+	/**
+	 * The token in an "Authorization: Bearer" header, which carries the JSON
+	 * returned by /sign/in encoded as URL-safe Base64. Null if it is missing
+	 * or malformed.
+	 */
+	public static AuthToken fromBearer(String authorization) {
+		if(authorization == null || !authorization.startsWith("Bearer "))
+			return null;
+		try {
+			byte[] json = Base64.getUrlDecoder().decode(authorization.substring("Bearer ".length()).trim());
+			return JsonMapper.get().readValue(json, AuthToken.class);
+		} catch(IllegalArgumentException | IOException e) {
+			return null;
+		}
+	}
+	
 	public boolean isValid(long expirationData) {
 		if(expirationData - System.currentTimeMillis() > 0)
 			return true;
@@ -0,0 +1,24 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.List;
+
+public class BulkData extends UserData {
+	
+	//OPERATIONS
+	public static final String DISABLE = "DISABLE";
+	public static final String ROLE = "ROLE";
+	public static final String STATE = "STATE";
+	public static final String DELETE = "DELETE";
+	
+	public static final int MAX_USERNAMES = 5000;
+	
+	public String operation;
+	public List<String> usernames;
+	
+	public BulkData() {}
+	
+	public boolean validOperation() {
+		return DISABLE.equals(operation) || ROLE.equals(operation) || STATE.equals(operation) || DELETE.equals(operation);
+	}
+
+}
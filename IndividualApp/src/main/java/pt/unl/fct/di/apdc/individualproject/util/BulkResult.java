@@ -0,0 +1,41 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BulkResult {
+	
+	public String operation;
+	public int succeeded;
+	public int failed;
+	public List<Entry> results = new ArrayList<>();
+	
+	public BulkResult() {}
+	
+	public BulkResult(String operation) {
+		this.operation = operation;
+	}
+	
+	public void add(Entry entry) {
+		results.add(entry);
+		if(entry.success)
+			succeeded++;
+		else
+			failed++;
+	}
+	
+	public static class Entry {
+		public String username;
+		public boolean success;
+		public String message;
+		
+		public Entry() {}
+		
+		public Entry(String username, boolean success, String message) {
+			this.username = username;
+			this.success = success;
+			this.message = message;
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Transaction;
+
+/**
+ * Wraps the Datastore client so that every write to a kind held in the
+ * {@link SharedCache} also updates it, whichever code path makes the write.
+ * Transactions watch the cached entities they read and hand what they wrote
+ * to the cache once they commit; writes outside a transaction delete the
+ * entries.
+ * <p>
+ * Like InstrumentedDatastore, the wrappers are dynamic proxies dispatching
+ * on the method name.
+ */
+public class CachedDatastore {
+
+	private CachedDatastore() {}
+
+	public static Datastore wrap(Datastore datastore) {
+		return (Datastore) Proxy.newProxyInstance(Datastore.class.getClassLoader(), new Class<?>[] { Datastore.class },
+				new DatastoreHandler(datastore));
+	}
+
+	private static Map<Key, Entity> written(Object[] args, boolean deleted) {
+		Map<Key, Entity> written = new LinkedHashMap<>();
+		if(deleted) {
+			for(Key key : InstrumentedDatastore.keys(args)) {
+				if(SharedCache.isCached(key))
+					written.put(key, null);
+			}
+			return written;
+		}
+		for(Object arg : args) {
+			List<FullEntity<?>> entities = new ArrayList<>();
+			if(arg instanceof FullEntity)
+				entities.add((FullEntity<?>) arg);
+			else if(arg instanceof FullEntity[])
+				Collections.addAll(entities, (FullEntity<?>[]) arg);
+			for(FullEntity<?> entity : entities) {
+				if(entity instanceof Entity && SharedCache.isCached(((Entity) entity).getKey()))
+					written.put(((Entity) entity).getKey(), (Entity) entity);
+			}
+		}
+		return written;
+	}
+
+	private static class DatastoreHandler implements InvocationHandler {
+		private final Datastore datastore;
+
+		DatastoreHandler(Datastore datastore) {
+			this.datastore = datastore;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch(method.getName()) {
+			case "newTransaction":
+				Transaction txn = (Transaction) InstrumentedDatastore.invoke(datastore, method, args);
+				return Proxy.newProxyInstance(Transaction.class.getClassLoader(), new Class<?>[] { Transaction.class },
+						new TransactionHandler(txn));
+			case "put":
+			case "add":
+			case "update":
+			case "delete":
+				Object result = InstrumentedDatastore.invoke(datastore, method, args);
+				SharedCache.getInstance().committed(Collections.emptyMap(), written(args, method.getName().equals("delete")));
+				return result;
+			default:
+				return InstrumentedDatastore.invoke(datastore, method, args);
+			}
+		}
+	}
+
+	private static class TransactionHandler implements InvocationHandler {
+		private final Transaction txn;
+		private final Map<Key, IdentifiableValue> watched = new HashMap<>();
+		private final Map<Key, Entity> written = new LinkedHashMap<>();
+
+		TransactionHandler(Transaction txn) {
+			this.txn = txn;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch(method.getName()) {
+			case "get":
+			case "fetch":
+				List<Key> unwatched = new ArrayList<>();
+				for(Key key : InstrumentedDatastore.keys(args)) {
+					if(SharedCache.isCached(key) && !watched.containsKey(key))
+						unwatched.add(key);
+				}
+				watched.putAll(SharedCache.getInstance().watch(unwatched));
+				return InstrumentedDatastore.invoke(txn, method, args);
+			case "put":
+			case "add":
+			case "update":
+				written.putAll(written(args, false));
+				return InstrumentedDatastore.invoke(txn, method, args);
+			case "delete":
+				written.putAll(written(args, true));
+				return InstrumentedDatastore.invoke(txn, method, args);
+			case "commit":
+				Object response = InstrumentedDatastore.invoke(txn, method, args);
+				SharedCache.getInstance().committed(watched, written);
+				return response;
+			default:
+				return InstrumentedDatastore.invoke(txn, method, args);
+			}
+		}
+	}
+
+}
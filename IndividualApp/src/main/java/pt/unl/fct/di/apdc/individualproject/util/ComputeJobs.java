@@ -0,0 +1,370 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+
+/**
+ * Runs compute jobs. A job is stored in the Job kind and split into chunks;
+ * every finished chunk is checkpointed in the JobChunk kind, so a retried task
+ * skips the chunks that are already done instead of starting over.
+ * <ul>
+ * <li>LOCAL jobs run as a single task that computes all chunks on this
+ * instance's fork/join pool;</li>
+ * <li>DISTRIBUTED jobs enqueue one task per chunk, spreading them over
+ * whichever instances the queue dispatches to.</li>
+ * </ul>
+ * The job is finished by whoever sees every chunk checkpointed first.
+ */
+public class ComputeJobs {
+
+	private static final Logger LOG = Logger.getLogger(ComputeJobs.class.getName());
+	/**
+	 * Queue for the job tasks, its concurrency is capped in queue.xml.
+	 */
+	public static final String QUEUE = "compute";
+	private static final long TRIGGER_WINDOW = Long.getLong("individualproject.compute.trigger.window", 60) * 1000;
+	private static final ComputeJobs INSTANCE = new ComputeJobs(Storage.getDatastore());
+
+	private final Datastore datastore;
+	private final TransactionRunner transactions = TransactionRunner.getInstance();
+	private final KeyFactory jobKeyFactory;
+	private final KeyFactory chunkKeyFactory;
+	private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	private final Set<String> cancelled = ConcurrentHashMap.newKeySet();
+
+	public ComputeJobs(Datastore datastore) {
+		this.datastore = datastore;
+		this.jobKeyFactory = datastore.newKeyFactory().setKind("Job");
+		this.chunkKeyFactory = datastore.newKeyFactory().setKind("JobChunk");
+	}
+
+	public static ComputeJobs getInstance() {
+		return INSTANCE;
+	}
+
+	public JobStatus submit(JobData data) {
+		String id = UUID.randomUUID().toString();
+		Entity job = newJob(id, data);
+		datastore.put(job);
+		enqueue(id, data);
+		return toStatus(job, 0);
+	}
+
+	/**
+	 * Submits a job on behalf of a trigger. Triggers for the same job within
+	 * one window get the same job id, so a burst of them starts a single job
+	 * and the later ones just get its status. Triggers that lose the race to
+	 * store the job read it again, and every trigger of a running job enqueues
+	 * its tasks, which is a no-op once they exist but makes up for a trigger
+	 * that stored the job and failed to enqueue them.
+	 */
+	public JobStatus trigger(JobData data) throws Exception {
+		long window = System.currentTimeMillis() / TRIGGER_WINDOW;
+		String id = String.join("-", "trigger", data.mode, Long.toString(data.from), Long.toString(data.to),
+				Integer.toString(data.chunks), Long.toString(window));
+		Key jobKey = jobKeyFactory.newKey(id);
+
+		AtomicBoolean created = new AtomicBoolean();
+		Entity job = transactions.call(txn -> {
+			Entity stored = txn.get(jobKey);
+			if(stored != null)
+				return stored;
+			stored = newJob(id, data);
+			txn.put(stored);
+			txn.commit();
+			created.set(true);
+			return stored;
+		});
+		if(!created.get())
+			LOG.fine("Trigger coalesced into job " + id);
+		if(JobStatus.RUNNING.equals(job.getString("state")))
+			enqueue(id, data);
+		return toStatus(job, created.get() ? 0 : countDone(id));
+	}
+
+	private Entity newJob(String id, JobData data) {
+		return Entity.newBuilder(jobKeyFactory.newKey(id))
+				.set("state", JobStatus.RUNNING)
+				.set("mode", data.mode)
+				.set("from", data.from)
+				.set("to", data.to)
+				.set("chunks", data.chunks)
+				.set("result", 0)
+				.set("creation", System.currentTimeMillis())
+				.build();
+	}
+
+	/**
+	 * Tasks are named after the job, so enqueuing the same job twice is a no-op.
+	 */
+	private void enqueue(String id, JobData data) {
+		TaskBatcher batcher = new TaskBatcher(QueueFactory.getQueue(QUEUE));
+		if(JobData.LOCAL.equals(data.mode)) {
+			batcher.add(TaskOptions.Builder.withUrl("/rest/utils/compute/" + id + "/run").taskName("job-" + id));
+		} else {
+			for(int i = 0; i < data.chunks; i++)
+				batcher.add(TaskOptions.Builder.withUrl("/rest/utils/compute/" + id + "/chunk/" + i).taskName("job-" + id + "-" + i));
+		}
+		batcher.flush();
+		if(batcher.getDuplicates() > 0)
+			LOG.fine(batcher.getDuplicates() + " tasks of job " + id + " were already enqueued.");
+	}
+
+	/**
+	 * Current state and progress of a job, or null if it does not exist.
+	 */
+	public JobStatus status(String id) {
+		Entity job = datastore.get(jobKeyFactory.newKey(id));
+		if(job == null)
+			return null;
+
+		int done = countDone(id);
+		if(JobStatus.RUNNING.equals(job.getString("state")) && done >= job.getLong("chunks")) {
+			finish(id);
+			job = datastore.get(jobKeyFactory.newKey(id));
+		}
+		return toStatus(job, done);
+	}
+
+	/**
+	 * Cancels a running job, returning its status or null if it does not exist.
+	 */
+	public JobStatus cancel(String id) {
+		Key jobKey = jobKeyFactory.newKey(id);
+		Transaction txn = datastore.newTransaction();
+		try {
+			Entity job = txn.get(jobKey);
+			if(job == null)
+				return null;
+
+			if(JobStatus.RUNNING.equals(job.getString("state"))) {
+				job = new EntityPatch(job).set("state", JobStatus.CANCELLED).build();
+				txn.put(job);
+				txn.commit();
+				cancelled.add(id);
+			}
+			return toStatus(job, countDone(id));
+		} finally {
+			if(txn.isActive())
+				txn.rollback();
+		}
+	}
+
+	/**
+	 * Runs every chunk of a LOCAL job on the fork/join pool and finishes it.
+	 */
+	public void run(String id) {
+		Entity job = datastore.get(jobKeyFactory.newKey(id));
+		if(job == null || !JobStatus.RUNNING.equals(job.getString("state")))
+			return;
+
+		JobData data = toData(job);
+		try {
+			pool.invoke(new ChunkRange(id, data, 0, data.chunks));
+			finish(id);
+		} catch(CancellationException e) {
+			LOG.info("Job " + id + " cancelled.");
+		} finally {
+			cancelled.remove(id);
+		}
+	}
+
+	/**
+	 * Runs one chunk of a DISTRIBUTED job.
+	 */
+	public void runChunk(String id, int index) {
+		Entity job = datastore.get(jobKeyFactory.newKey(id));
+		if(job == null || !JobStatus.RUNNING.equals(job.getString("state")))
+			return;
+
+		JobData data = toData(job);
+		if(index < 0 || index >= data.chunks)
+			return;
+
+		try {
+			runChunk(id, data, index);
+		} catch(CancellationException e) {
+			return;
+		}
+		if(countDone(id) >= data.chunks)
+			finish(id);
+	}
+
+	private long runChunk(String id, JobData data, int index) {
+		Key chunkKey = chunkKey(id, index);
+		Entity chunk = datastore.get(chunkKey);
+		if(chunk != null)
+			return chunk.getLong("result");
+
+		if(isCancelled(id))
+			throw new CancellationException();
+
+		long result = countPrimes(data.chunkStart(index), data.chunkEnd(index));
+		datastore.put(Entity.newBuilder(chunkKey)
+				.set("job", id)
+				.set("index", index)
+				.set("result", result)
+				.build());
+		return result;
+	}
+
+	/**
+	 * Marks the job as done if every chunk has been checkpointed. Chunks are
+	 * read by key so that this does not depend on query consistency.
+	 */
+	private void finish(String id) {
+		Key jobKey = jobKeyFactory.newKey(id);
+		Entity job = datastore.get(jobKey);
+		if(job == null)
+			return;
+
+		int chunks = (int) job.getLong("chunks");
+		Key[] chunkKeys = new Key[chunks];
+		for(int i = 0; i < chunks; i++)
+			chunkKeys[i] = chunkKey(id, i);
+
+		long result = 0;
+		for(Entity chunk : datastore.fetch(chunkKeys)) {
+			if(chunk == null)
+				return;
+			result += chunk.getLong("result");
+		}
+
+		Transaction txn = datastore.newTransaction();
+		try {
+			job = txn.get(jobKey);
+			if(JobStatus.RUNNING.equals(job.getString("state"))) {
+				txn.put(new EntityPatch(job).set("state", JobStatus.DONE).set("result", result).build());
+				txn.commit();
+			}
+		} finally {
+			if(txn.isActive())
+				txn.rollback();
+		}
+	}
+
+	private boolean isCancelled(String id) {
+		if(cancelled.contains(id))
+			return true;
+		Entity job = datastore.get(jobKeyFactory.newKey(id));
+		return job == null || JobStatus.CANCELLED.equals(job.getString("state"));
+	}
+
+	/**
+	 * Chunks checkpointed so far. The query is eventually consistent, so this
+	 * is only used for progress and to decide when to try finishing the job.
+	 */
+	private int countDone(String id) {
+		Query<Key> query = Query.newKeyQueryBuilder()
+				.setKind("JobChunk")
+				.setFilter(PropertyFilter.eq("job", id))
+				.build();
+		int done = 0;
+		QueryResults<Key> results = datastore.run(query);
+		while(results.hasNext()) {
+			results.next();
+			done++;
+		}
+		return done;
+	}
+
+	private Key chunkKey(String id, int index) {
+		return chunkKeyFactory.newKey(id + "-" + index);
+	}
+
+	private static JobData toData(Entity job) {
+		return new JobData(job.getLong("from"), job.getLong("to"), (int) job.getLong("chunks"), job.getString("mode"));
+	}
+
+	private static JobStatus toStatus(Entity job, int done) {
+		JobStatus status = new JobStatus();
+		status.id = job.getKey().getName();
+		status.state = job.getString("state");
+		status.mode = job.getString("mode");
+		status.from = job.getLong("from");
+		status.to = job.getLong("to");
+		status.chunks = (int) job.getLong("chunks");
+		status.chunksDone = Math.min(done, status.chunks);
+		status.progress = status.chunksDone / (double) status.chunks;
+		if(JobStatus.DONE.equals(status.state)) {
+			status.chunksDone = status.chunks;
+			status.progress = 1;
+			status.result = job.getLong("result");
+		}
+		return status;
+	}
+
+	/**
+	 * Number of primes in [lo, hi), with a segmented sieve.
+	 */
+	static long countPrimes(long lo, long hi) {
+		lo = Math.max(lo, 2);
+		if(hi <= lo)
+			return 0;
+
+		int limit = (int) Math.sqrt(hi) + 1;
+		boolean[] composite = new boolean[limit + 1];
+		boolean[] segment = new boolean[(int) (hi - lo)];
+		for(int p = 2; p <= limit; p++) {
+			if(composite[p])
+				continue;
+			for(long m = (long) p * p; m <= limit; m += p)
+				composite[(int) m] = true;
+			for(long m = Math.max((long) p * p, (lo + p - 1) / p * p); m < hi; m += p)
+				segment[(int) (m - lo)] = true;
+		}
+
+		long count = 0;
+		for(boolean c : segment) {
+			if(!c)
+				count++;
+		}
+		return count;
+	}
+
+	private class ChunkRange extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+
+		private final String id;
+		private final JobData data;
+		private final int lo;
+		private final int hi;
+
+		ChunkRange(String id, JobData data, int lo, int hi) {
+			this.id = id;
+			this.data = data;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected Long compute() {
+			if(hi - lo == 1)
+				return runChunk(id, data, lo);
+
+			int mid = (lo + hi) >>> 1;
+			ChunkRange left = new ChunkRange(id, data, lo, mid);
+			left.fork();
+			long right = new ChunkRange(id, data, mid, hi).compute();
+			return left.join() + right;
+		}
+	}
+
+}
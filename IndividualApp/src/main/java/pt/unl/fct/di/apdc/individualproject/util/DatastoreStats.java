@@ -0,0 +1,218 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Datastore usage of one request, or the running total of an endpoint. The
+ * request being served is tracked per thread; handlers that hop to another
+ * thread carry it over with {@link #propagate(Supplier)}.
+ */
+public class DatastoreStats {
+
+	//WASTE
+	public static final String READ_BEFORE_INSERT = "read before insert";
+	public static final String DUPLICATE_READ = "duplicate read";
+	public static final String UNUSED_PREFETCH = "unused prefetch";
+
+	private static final ThreadLocal<DatastoreStats> CURRENT = new ThreadLocal<>();
+
+	private final LongAdder rpcs = new LongAdder();
+	private final LongAdder rpcNanos = new LongAdder();
+	private final LongAdder reads = new LongAdder();
+	private final LongAdder queries = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder deletes = new LongAdder();
+	private final LongAdder commits = new LongAdder();
+	private final LongAdder rollbacks = new LongAdder();
+	private final LongAdder aborted = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final Map<String, LongAdder> contention = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> wasted = new ConcurrentHashMap<>();
+	private final List<EntityLoader> loaders = new CopyOnWriteArrayList<>();
+
+	public static DatastoreStats current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Makes the given stats the current ones of this thread, returning the
+	 * previous ones.
+	 */
+	public static DatastoreStats attach(DatastoreStats stats) {
+		DatastoreStats previous = CURRENT.get();
+		if(stats == null)
+			CURRENT.remove();
+		else
+			CURRENT.set(stats);
+		return previous;
+	}
+
+	public static <T> Supplier<T> propagate(Supplier<T> task) {
+		DatastoreStats stats = current();
+		return () -> {
+			DatastoreStats previous = attach(stats);
+			try {
+				return task.get();
+			} finally {
+				attach(previous);
+			}
+		};
+	}
+
+	void rpc(long nanos) {
+		rpcs.increment();
+		rpcNanos.add(nanos);
+	}
+
+	void reads(int keys) {
+		reads.add(keys);
+	}
+
+	void query() {
+		queries.increment();
+	}
+
+	void writes(int entities) {
+		writes.add(entities);
+	}
+
+	void deletes(int keys) {
+		deletes.add(keys);
+	}
+
+	void commit() {
+		commits.increment();
+	}
+
+	void rollback() {
+		rollbacks.increment();
+	}
+
+	void aborted(Iterable<String> kinds) {
+		aborted.increment();
+		for(String kind : kinds)
+			increment(contention, kind, 1);
+	}
+
+	void retry() {
+		retries.increment();
+	}
+
+	void wasted(String reason, String kind) {
+		increment(wasted, reason + ": " + kind, 1);
+	}
+
+	void track(EntityLoader loader) {
+		loaders.add(loader);
+	}
+
+	/**
+	 * Ends a request, flagging what its loaders fetched but never used.
+	 */
+	public void finish() {
+		for(EntityLoader loader : loaders) {
+			for(String kind : loader.unusedKinds())
+				wasted(UNUSED_PREFETCH, kind);
+		}
+		loaders.clear();
+	}
+
+	public void addTo(DatastoreStats total) {
+		total.rpcs.add(rpcs.sum());
+		total.rpcNanos.add(rpcNanos.sum());
+		total.reads.add(reads.sum());
+		total.queries.add(queries.sum());
+		total.writes.add(writes.sum());
+		total.deletes.add(deletes.sum());
+		total.commits.add(commits.sum());
+		total.rollbacks.add(rollbacks.sum());
+		total.aborted.add(aborted.sum());
+		total.retries.add(retries.sum());
+		for(Map.Entry<String, LongAdder> entry : contention.entrySet())
+			increment(total.contention, entry.getKey(), entry.getValue().sum());
+		for(Map.Entry<String, LongAdder> entry : wasted.entrySet())
+			increment(total.wasted, entry.getKey(), entry.getValue().sum());
+	}
+
+	public long getRpcs() {
+		return rpcs.sum();
+	}
+
+	public double getRpcMillis() {
+		return rpcNanos.sum() / 1e6;
+	}
+
+	public long getReads() {
+		return reads.sum();
+	}
+
+	public long getQueries() {
+		return queries.sum();
+	}
+
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	public long getDeletes() {
+		return deletes.sum();
+	}
+
+	public long getCommits() {
+		return commits.sum();
+	}
+
+	public long getRollbacks() {
+		return rollbacks.sum();
+	}
+
+	public long getAborted() {
+		return aborted.sum();
+	}
+
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	/**
+	 * Aborted transactions by the entity kinds they touched.
+	 */
+	public Map<String, Long> getContention() {
+		return sums(contention);
+	}
+
+	/**
+	 * Wasted operations by reason and entity kind.
+	 */
+	public Map<String, Long> getWasted() {
+		return sums(wasted);
+	}
+
+	@Override
+	public String toString() {
+		return getRpcs() + " RPCs in " + String.format("%.1f", getRpcMillis()) + "ms, " + getReads() + " reads, "
+				+ getQueries() + " queries, " + getWrites() + " writes, " + getDeletes() + " deletes, "
+				+ getCommits() + " commits, " + getRollbacks() + " rollbacks, " + getAborted() + " aborted, " + getRetries() + " retries";
+	}
+
+	private static void increment(Map<String, LongAdder> counters, String key, long value) {
+		LongAdder counter = counters.get(key);
+		if(counter == null)
+			counter = counters.computeIfAbsent(key, k -> new LongAdder());
+		counter.add(value);
+	}
+
+	private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+		Map<String, Long> sums = new TreeMap<>();
+		for(Map.Entry<String, LongAdder> entry : counters.entrySet())
+			sums.put(entry.getKey(), entry.getValue().sum());
+		return sums;
+	}
+
+}
@@ -0,0 +1,81 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.cloud.datastore.DatastoreReader;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+
+/**
+ * Request-scoped loader that collects the keys a handler needs and reads
+ * them with a single multi-key lookup the first time any of them is asked for.
+ * Keys requested later than that are fetched on demand (again batched with
+ * anything still pending).
+ */
+public class EntityLoader {
+
+	private final DatastoreReader reader;
+	private final Set<Key> pending = new LinkedHashSet<>();
+	private final Map<Key, Entity> loaded = new HashMap<>();
+	private final Set<Key> used = new HashSet<>();
+
+	public EntityLoader(DatastoreReader reader) {
+		this.reader = reader;
+		DatastoreStats stats = DatastoreStats.current();
+		if(stats != null)
+			stats.track(this);
+	}
+
+	public EntityLoader add(Key... keys) {
+		for(Key key : keys) {
+			if(!loaded.containsKey(key))
+				pending.add(key);
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the entity with the given key, or null if it does not exist.
+	 */
+	public Entity get(Key key) {
+		if(!loaded.containsKey(key)) {
+			pending.add(key);
+			load();
+		}
+		used.add(key);
+		return loaded.get(key);
+	}
+
+	/**
+	 * Kinds of the keys that were fetched but never asked for.
+	 */
+	List<String> unusedKinds() {
+		List<String> kinds = new ArrayList<>();
+		for(Key key : loaded.keySet()) {
+			if(!used.contains(key))
+				kinds.add(key.getKind());
+		}
+		return kinds;
+	}
+
+	public void load() {
+		if(pending.isEmpty())
+			return;
+
+		Key[] keys = pending.toArray(new Key[pending.size()]);
+		pending.clear();
+
+		List<Entity> entities = reader.fetch(keys);
+		Iterator<Entity> it = entities.iterator();
+		for(Key key : keys)
+			loaded.put(key, it.next());
+	}
+
+}
@@ -0,0 +1,55 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.Objects;
+
+import com.google.cloud.datastore.Entity;
+
+/**
+ * Applies field changes to a stored entity, keeping track of whether anything
+ * actually differs, so that unchanged entities are not written back.
+ * Setting a null value leaves the property as it is. The patched entity is
+ * laid out as its {@link Schema} declares.
+ */
+public class EntityPatch {
+
+	private final Entity original;
+	private Entity.Builder builder;
+
+	public EntityPatch(Entity original) {
+		this.original = original;
+	}
+
+	public EntityPatch set(String name, String value) {
+		if(value != null && !Objects.equals(current(name), value))
+			builder().set(name, value);
+		return this;
+	}
+
+	public EntityPatch set(String name, long value) {
+		if(!Objects.equals(current(name), value))
+			builder().set(name, value);
+		return this;
+	}
+
+	public boolean isChanged() {
+		return builder != null;
+	}
+
+	/**
+	 * The patched entity, or the original one if nothing changed.
+	 */
+	public Entity build() {
+		return isChanged() ? Schema.conform(builder.build()) : original;
+	}
+
+	private Object current(String name) {
+		return original.contains(name) ? original.getValue(name).get() : null;
+	}
+
+	private Entity.Builder builder() {
+		if(builder == null)
+			builder = Entity.newBuilder(original);
+		return builder;
+	}
+
+}
@@ -0,0 +1,229 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.IncompleteKey;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Transaction;
+
+/**
+ * Wraps the Datastore client, and the transactions it opens, so that every
+ * call is counted and timed in the {@link DatastoreStats} of the request
+ * making it. Aborted transactions are recorded under the kinds they touched,
+ * and two kinds of wasted reads are flagged: a key read twice in the same
+ * transaction, and a key read and then inserted with add() (which already
+ * fails if the entity exists).
+ * <p>
+ * The interfaces have dozens of methods, most of them overloads, so the
+ * wrappers are dynamic proxies dispatching on the method name.
+ */
+public class InstrumentedDatastore {
+
+	private InstrumentedDatastore() {}
+
+	public static Datastore wrap(Datastore datastore) {
+		return (Datastore) Proxy.newProxyInstance(Datastore.class.getClassLoader(), new Class<?>[] { Datastore.class },
+				new DatastoreHandler(datastore));
+	}
+
+	static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch(InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Keys passed as a Key, varargs or an Iterable.
+	 */
+	static List<Key> keys(Object[] args) {
+		List<Key> keys = new ArrayList<>();
+		if(args == null)
+			return keys;
+		for(Object arg : args) {
+			if(arg instanceof Key) {
+				keys.add((Key) arg);
+			} else if(arg instanceof Key[]) {
+				for(Key key : (Key[]) arg)
+					keys.add(key);
+			} else if(arg instanceof Iterable) {
+				for(Object key : (Iterable<?>) arg) {
+					if(key instanceof Key)
+						keys.add((Key) key);
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Keys of the entities passed as an entity or varargs.
+	 */
+	static List<IncompleteKey> entityKeys(Object[] args) {
+		List<IncompleteKey> keys = new ArrayList<>();
+		if(args == null)
+			return keys;
+		for(Object arg : args) {
+			if(arg instanceof FullEntity) {
+				keys.add(((FullEntity<?>) arg).getKey());
+			} else if(arg instanceof FullEntity[]) {
+				for(FullEntity<?> entity : (FullEntity<?>[]) arg)
+					keys.add(entity.getKey());
+			}
+		}
+		return keys;
+	}
+
+	private static class DatastoreHandler implements InvocationHandler {
+		private final Datastore datastore;
+
+		DatastoreHandler(Datastore datastore) {
+			this.datastore = datastore;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			DatastoreStats stats = DatastoreStats.current();
+			String name = method.getName();
+
+			if(name.equals("newTransaction")) {
+				Transaction txn = (Transaction) timed(stats, method, args);
+				return Proxy.newProxyInstance(Transaction.class.getClassLoader(), new Class<?>[] { Transaction.class },
+						new TransactionHandler(txn, stats));
+			}
+			if(stats == null || method.getDeclaringClass() == Object.class)
+				return InstrumentedDatastore.invoke(datastore, method, args);
+
+			switch(name) {
+			case "get":
+			case "fetch":
+				stats.reads(keys(args).size());
+				return timed(stats, method, args);
+			case "run":
+				stats.query();
+				return timed(stats, method, args);
+			case "put":
+			case "add":
+			case "update":
+				stats.writes(entityKeys(args).size());
+				return timed(stats, method, args);
+			case "delete":
+				stats.deletes(keys(args).size());
+				return timed(stats, method, args);
+			case "allocateId":
+			case "reserveIds":
+				return timed(stats, method, args);
+			default:
+				return InstrumentedDatastore.invoke(datastore, method, args);
+			}
+		}
+
+		private Object timed(DatastoreStats stats, Method method, Object[] args) throws Throwable {
+			long start = System.nanoTime();
+			try {
+				return InstrumentedDatastore.invoke(datastore, method, args);
+			} finally {
+				if(stats != null)
+					stats.rpc(System.nanoTime() - start);
+			}
+		}
+	}
+
+	private static class TransactionHandler implements InvocationHandler {
+		private final Transaction txn;
+		private final DatastoreStats stats;
+		private final Set<Key> read = new HashSet<>();
+		private final Set<String> kinds = new TreeSet<>();
+
+		TransactionHandler(Transaction txn, DatastoreStats stats) {
+			this.txn = txn;
+			this.stats = stats;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if(stats == null || method.getDeclaringClass() == Object.class)
+				return InstrumentedDatastore.invoke(txn, method, args);
+
+			switch(method.getName()) {
+			case "get":
+			case "fetch":
+				List<Key> keys = keys(args);
+				stats.reads(keys.size());
+				for(Key key : keys) {
+					kinds.add(key.getKind());
+					if(!read.add(key))
+						stats.wasted(DatastoreStats.DUPLICATE_READ, key.getKind());
+				}
+				return timed(method, args);
+			case "run":
+				stats.query();
+				return timed(method, args);
+			case "add":
+			case "addWithDeferredIdAllocation":
+				for(IncompleteKey key : entityKeys(args)) {
+					if(read.contains(key))
+						stats.wasted(DatastoreStats.READ_BEFORE_INSERT, key.getKind());
+				}
+				return write(method, args);
+			case "put":
+			case "update":
+			case "putWithDeferredIdAllocation":
+				return write(method, args);
+			case "delete":
+				List<Key> deleted = keys(args);
+				stats.deletes(deleted.size());
+				for(Key key : deleted)
+					kinds.add(key.getKind());
+				return InstrumentedDatastore.invoke(txn, method, args);
+			case "commit":
+				stats.commit();
+				try {
+					return timed(method, args);
+				} catch(Throwable e) {
+					if(TransactionRunner.isContention(e))
+						stats.aborted(kinds);
+					throw e;
+				}
+			case "rollback":
+				stats.rollback();
+				return timed(method, args);
+			default:
+				return InstrumentedDatastore.invoke(txn, method, args);
+			}
+		}
+
+		private Object write(Method method, Object[] args) throws Throwable {
+			List<IncompleteKey> written = entityKeys(args);
+			stats.writes(written.size());
+			for(IncompleteKey key : written)
+				kinds.add(key.getKind());
+			return InstrumentedDatastore.invoke(txn, method, args);
+		}
+
+		private Object timed(Method method, Object[] args) throws Throwable {
+			long start = System.nanoTime();
+			try {
+				return InstrumentedDatastore.invoke(txn, method, args);
+			} catch(Throwable e) {
+				if(TransactionRunner.isContention(e) && !method.getName().equals("commit"))
+					stats.aborted(kinds);
+				throw e;
+			} finally {
+				stats.rpc(System.nanoTime() - start);
+			}
+		}
+	}
+
+}
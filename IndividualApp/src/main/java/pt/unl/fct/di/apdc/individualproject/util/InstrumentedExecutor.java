@@ -0,0 +1,111 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executor that counts submitted, running, completed, failed and rejected
+ * tasks and how long they waited in the queue and ran.
+ */
+public class InstrumentedExecutor implements Executor {
+
+	private final String name;
+	private final ExecutorService delegate;
+	private final LongAdder submitted = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final LongAdder runNanos = new LongAdder();
+	private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+	private final LongAccumulator maxRunNanos = new LongAccumulator(Math::max, 0);
+	private final AtomicInteger active = new AtomicInteger();
+
+	public InstrumentedExecutor(String name, ExecutorService delegate) {
+		this.name = name;
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		long queuedAt = System.nanoTime();
+		try {
+			delegate.execute(() -> {
+				long start = System.nanoTime();
+				waitNanos.add(start - queuedAt);
+				maxWaitNanos.accumulate(start - queuedAt);
+				active.incrementAndGet();
+				try {
+					task.run();
+					completed.increment();
+				} catch(RuntimeException | Error e) {
+					failed.increment();
+					throw e;
+				} finally {
+					active.decrementAndGet();
+					long run = System.nanoTime() - start;
+					runNanos.add(run);
+					maxRunNanos.accumulate(run);
+				}
+			});
+			submitted.increment();
+		} catch(RejectedExecutionException e) {
+			rejected.increment();
+			throw e;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getActive() {
+		return active.get();
+	}
+
+	public int getQueued() {
+		if(delegate instanceof ThreadPoolExecutor)
+			return ((ThreadPoolExecutor) delegate).getQueue().size();
+		return 0;
+	}
+
+	public long getSubmitted() {
+		return submitted.sum();
+	}
+
+	public long getCompleted() {
+		return completed.sum();
+	}
+
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	public double getAverageWaitMillis() {
+		long finished = completed.sum() + failed.sum();
+		return finished == 0 ? 0 : waitNanos.sum() / 1e6 / finished;
+	}
+
+	public double getAverageRunMillis() {
+		long finished = completed.sum() + failed.sum();
+		return finished == 0 ? 0 : runNanos.sum() / 1e6 / finished;
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	public double getMaxRunMillis() {
+		return maxRunNanos.get() / 1e6;
+	}
+
+}
@@ -0,0 +1,60 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+/**
+ * A compute job: counts the primes in [from, to), split into chunks that run
+ * in parallel on one instance (LOCAL) or as one task per chunk (DISTRIBUTED).
+ */
+public class JobData {
+	
+	//MODES
+	public static final String LOCAL = "LOCAL";
+	public static final String DISTRIBUTED = "DISTRIBUTED";
+	
+	public static final int MAX_CHUNKS = 1000;
+	public static final long MAX_CHUNK_SPAN = 10000000L;
+	public static final long MAX_TO = 1000000000000L;
+	
+	public long from;
+	public long to;
+	public int chunks;
+	public String mode;
+	
+	public AuthToken at;
+	
+	public JobData() {}
+	
+	public JobData(long from, long to, int chunks, String mode) {
+		this.from = from;
+		this.to = to;
+		this.chunks = chunks;
+		this.mode = mode;
+	}
+	
+	/**
+	 * The job run by POST /utils/compute/trigger.
+	 */
+	public static JobData defaultJob() {
+		return new JobData(0, 100000000L, 50, LOCAL);
+	}
+	
+	public String validate() {
+		if(!LOCAL.equals(mode) && !DISTRIBUTED.equals(mode))
+			return "Mode must be " + LOCAL + " or " + DISTRIBUTED + ".";
+		if(from < 0 || to <= from || to > MAX_TO)
+			return "Range must satisfy 0 <= from < to <= " + MAX_TO + ".";
+		if(chunks < 1 || chunks > MAX_CHUNKS)
+			return "Chunks must be between 1 and " + MAX_CHUNKS + ".";
+		if((to - from + chunks - 1) / chunks > MAX_CHUNK_SPAN)
+			return "Each chunk can span at most " + MAX_CHUNK_SPAN + " numbers, use more chunks.";
+		return null;
+	}
+	
+	public long chunkStart(int index) {
+		return from + (to - from) * index / chunks;
+	}
+	
+	public long chunkEnd(int index) {
+		return from + (to - from) * (index + 1) / chunks;
+	}
+
+}
@@ -0,0 +1,22 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+public class JobStatus {
+	
+	//STATES
+	public static final String RUNNING = "RUNNING";
+	public static final String DONE = "DONE";
+	public static final String CANCELLED = "CANCELLED";
+	
+	public String id;
+	public String state;
+	public String mode;
+	public long from;
+	public long to;
+	public int chunks;
+	public int chunksDone;
+	public double progress;
+	public Long result;
+	
+	public JobStatus() {}
+
+}
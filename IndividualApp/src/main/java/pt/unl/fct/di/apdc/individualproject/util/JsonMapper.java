@@ -0,0 +1,49 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Provider;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * The one ObjectMapper used for both request and response bodies. Resources
+ * return typed objects and Jackson writes them straight to the response
+ * stream, instead of building the JSON in a String first.
+ * <p>
+ * Objects are mapped by their fields and null fields are left out, which is
+ * the same JSON the resources produced with Gson.
+ */
+@Provider
+public class JsonMapper implements ContextResolver<ObjectMapper> {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper()
+			.setVisibility(PropertyAccessor.ALL, Visibility.NONE)
+			.setVisibility(PropertyAccessor.FIELD, Visibility.ANY)
+			.setSerializationInclusion(Include.NON_NULL)
+			.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS)
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+	public static ObjectMapper get() {
+		return MAPPER;
+	}
+
+	/**
+	 * Writes a value as JSON to the response stream, for values such as plain
+	 * Strings that Jersey would otherwise write as text.
+	 */
+	public static StreamingOutput stream(Object value) {
+		return out -> MAPPER.writeValue(out, value);
+	}
+
+	@Override
+	public ObjectMapper getContext(Class<?> type) {
+		return MAPPER;
+	}
+
+}
@@ -0,0 +1,33 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+
+/**
+ * Key factories for the User, Profile and Token kinds, built once per process.
+ * A Profile is keyed by the username under its User.
+ */
+public class Keys {
+
+	private final KeyFactory userKeyFactory;
+	private final KeyFactory tokenKeyFactory;
+
+	public Keys(Datastore datastore) {
+		this.userKeyFactory = datastore.newKeyFactory().setKind("User");
+		this.tokenKeyFactory = datastore.newKeyFactory().setKind("Token");
+	}
+
+	public Key userKey(String username) {
+		return userKeyFactory.newKey(username);
+	}
+
+	public Key profileKey(String username) {
+		return Key.newBuilder(userKey(username), "Profile", username).build();
+	}
+
+	public Key tokenKey(String username) {
+		return tokenKeyFactory.newKey(username);
+	}
+
+}
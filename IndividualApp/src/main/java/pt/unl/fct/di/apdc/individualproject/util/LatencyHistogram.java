@@ -0,0 +1,88 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of latencies in microseconds. Values below
+ * 16us get a bucket each; above that every power of two is split into eight
+ * buckets, so a percentile is off by at most 12.5%. Recording is a few
+ * atomic adds and no allocation.
+ */
+public class LatencyHistogram {
+
+	private static final int LINEAR = 16;
+	private static final int SUB_BUCKETS = 8;
+	private static final int MAX_EXPONENT = 40; //about 12 days
+	private static final int BUCKETS = LINEAR + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public void record(long micros) {
+		if(micros < 0)
+			micros = 0;
+		counts.incrementAndGet(bucket(micros));
+		count.increment();
+		sum.add(micros);
+		max.accumulate(micros);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSumMicros() {
+		return sum.sum();
+	}
+
+	public long getMaxMicros() {
+		return max.get();
+	}
+
+	/**
+	 * Upper bound of the bucket holding the given quantile (0 to 1), or 0 if
+	 * nothing was recorded.
+	 */
+	public long percentileMicros(double quantile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if(total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if(seen >= rank && snapshot[i] > 0)
+				return Math.min(upperBound(i), getMaxMicros());
+		}
+		return getMaxMicros();
+	}
+
+	static int bucket(long micros) {
+		if(micros < LINEAR)
+			return (int) micros;
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if(exponent >= MAX_EXPONENT)
+			return BUCKETS - 1;
+		int sub = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound(int bucket) {
+		if(bucket < LINEAR)
+			return bucket;
+		int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+		int sub = (bucket - LINEAR) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+	}
+
+}
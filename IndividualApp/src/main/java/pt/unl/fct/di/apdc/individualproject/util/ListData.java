@@ -0,0 +1,46 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A page request for /user/list. Null role, state, profile and locality match
+ * any value; cursor is the page token returned with the previous page.
+ */
+public class ListData extends UserData {
+	
+	public static final int DEFAULT_LIMIT = 50;
+	public static final int MAX_LIMIT = 200;
+	
+	/**
+	 * The Profile properties that can be filtered on, in the order used by
+	 * the composite indexes in datastore-indexes.xml.
+	 */
+	public static final String[] PROPERTIES = { "role", "state", "profile", "locality" };
+	
+	public String cursor;
+	public int limit;
+	
+	public ListData() {}
+	
+	/**
+	 * The requested filters, by property name, in index order.
+	 */
+	public Map<String, String> filters() {
+		Map<String, String> filters = new LinkedHashMap<>();
+		if(role != null)
+			filters.put("role", role);
+		if(state != null)
+			filters.put("state", state);
+		if(profile != null)
+			filters.put("profile", profile);
+		if(locality != null)
+			filters.put("locality", locality);
+		return filters;
+	}
+	
+	public int pageSize() {
+		return limit == 0 ? DEFAULT_LIMIT : limit;
+	}
+
+}
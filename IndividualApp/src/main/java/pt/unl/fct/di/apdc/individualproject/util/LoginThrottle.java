@@ -0,0 +1,172 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-instance token-bucket limiter for login attempts, keyed by username and
+ * by client IP, checked before a login touches the Datastore. Buckets are
+ * spread over STRIPES independently locked LRU maps so concurrent logins
+ * rarely contend, each stripe is capped, and buckets that have refilled
+ * (and so are indistinguishable from new ones) are dropped.
+ */
+public class LoginThrottle {
+
+	public static final String USER_CAPACITY = "individualproject.login.user.capacity";
+	public static final String USER_REFILL = "individualproject.login.user.refill";
+	public static final String IP_CAPACITY = "individualproject.login.ip.capacity";
+	public static final String IP_REFILL = "individualproject.login.ip.refill";
+	public static final String MAX_BUCKETS = "individualproject.login.buckets";
+
+	private static final int STRIPES = 64;
+	private static final LoginThrottle INSTANCE = new LoginThrottle(
+			Integer.getInteger(USER_CAPACITY, 5), Long.getLong(USER_REFILL, 12000),
+			Integer.getInteger(IP_CAPACITY, 30), Long.getLong(IP_REFILL, 2000),
+			Integer.getInteger(MAX_BUCKETS, 100000));
+
+	private final Limit users;
+	private final Limit ips;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final LongAdder allowed = new LongAdder();
+	private final LongAdder rejectedByUser = new LongAdder();
+	private final LongAdder rejectedByIp = new LongAdder();
+
+	/**
+	 * Capacities are in attempts, refills in milliseconds per attempt.
+	 */
+	public LoginThrottle(int userCapacity, long userRefill, int ipCapacity, long ipRefill, int maxBuckets) {
+		this.users = new Limit(userCapacity, userRefill);
+		this.ips = new Limit(ipCapacity, ipRefill);
+		for(int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe(Math.max(1, maxBuckets / STRIPES));
+	}
+
+	public static LoginThrottle getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Takes one attempt from both the user's and the IP's bucket. Returns 0
+	 * if the login may go ahead, otherwise the milliseconds until it may be
+	 * retried.
+	 */
+	public long acquire(String username, String ip) {
+		long now = System.currentTimeMillis();
+		long wait = take("U:" + username, users, now);
+		if(wait > 0) {
+			rejectedByUser.increment();
+			return wait;
+		}
+		if(ip != null) {
+			wait = take("I:" + ip, ips, now);
+			if(wait > 0) {
+				rejectedByIp.increment();
+				return wait;
+			}
+		}
+		allowed.increment();
+		return 0;
+	}
+
+	private long take(String key, Limit limit, long now) {
+		Stripe stripe = stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+		synchronized(stripe) {
+			stripe.evictIdle(now);
+			Bucket bucket = stripe.buckets.get(key);
+			if(bucket == null) {
+				bucket = new Bucket(limit, now);
+				stripe.buckets.put(key, bucket);
+			}
+			return bucket.take(now);
+		}
+	}
+
+	public long getAllowed() {
+		return allowed.sum();
+	}
+
+	public long getRejectedByUser() {
+		return rejectedByUser.sum();
+	}
+
+	public long getRejectedByIp() {
+		return rejectedByIp.sum();
+	}
+
+	public int size() {
+		int size = 0;
+		for(Stripe stripe : stripes) {
+			synchronized(stripe) {
+				size += stripe.buckets.size();
+			}
+		}
+		return size;
+	}
+
+	private static class Limit {
+		final double capacity;
+		final long refill;
+
+		Limit(int capacity, long refill) {
+			this.capacity = capacity;
+			this.refill = refill;
+		}
+	}
+
+	private static class Bucket {
+		final Limit limit;
+		double tokens;
+		long updated;
+
+		Bucket(Limit limit, long now) {
+			this.limit = limit;
+			this.tokens = limit.capacity;
+			this.updated = now;
+		}
+
+		long take(long now) {
+			tokens = Math.min(limit.capacity, tokens + (now - updated) / (double) limit.refill);
+			updated = now;
+			if(tokens >= 1) {
+				tokens--;
+				return 0;
+			}
+			return (long) Math.ceil((1 - tokens) * limit.refill);
+		}
+
+		boolean isFull(long now) {
+			return tokens + (now - updated) / (double) limit.refill >= limit.capacity;
+		}
+	}
+
+	private static class Stripe {
+		final Map<String, Bucket> buckets;
+
+		Stripe(final int maxBuckets) {
+			this.buckets = new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+					return size() > maxBuckets;
+				}
+			};
+		}
+
+		/**
+		 * Drops the least recently used buckets that have refilled, stopping at
+		 * the first one that has not.
+		 */
+		void evictIdle(long now) {
+			Iterator<Bucket> it = buckets.values().iterator();
+			while(it.hasNext()) {
+				if(!it.next().isFull(now))
+					return;
+				it.remove();
+			}
+		}
+	}
+
+}
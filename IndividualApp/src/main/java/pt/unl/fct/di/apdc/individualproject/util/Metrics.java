@@ -0,0 +1,109 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-endpoint request metrics of this instance: a latency histogram, counts
+ * by status code, the number of requests in flight and Datastore usage.
+ */
+public class Metrics {
+
+	private static final Metrics INSTANCE = new Metrics();
+
+	private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+	public static Metrics getInstance() {
+		return INSTANCE;
+	}
+
+	public Endpoint endpoint(String name) {
+		Endpoint endpoint = endpoints.get(name);
+		if(endpoint == null)
+			endpoint = endpoints.computeIfAbsent(name, Endpoint::new);
+		return endpoint;
+	}
+
+	/**
+	 * The endpoints seen so far, sorted by name.
+	 */
+	public Map<String, Endpoint> getEndpoints() {
+		return new TreeMap<>(endpoints);
+	}
+
+	public static class Endpoint {
+		private final String name;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+		private final LongAdder inFlight = new LongAdder();
+		private final DatastoreStats datastore = new DatastoreStats();
+		private final Set<String> reportedWaste = ConcurrentHashMap.newKeySet();
+
+		Endpoint(String name) {
+			this.name = name;
+		}
+
+		public void started() {
+			inFlight.increment();
+		}
+
+		public void finished(int status, long micros) {
+			inFlight.decrement();
+			latency.record(micros);
+			count(status);
+		}
+
+		/**
+		 * Counts a response whose latency is unknown.
+		 */
+		public void count(int status) {
+			LongAdder counter = statuses.get(status);
+			if(counter == null)
+				counter = statuses.computeIfAbsent(status, s -> new LongAdder());
+			counter.increment();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		public DatastoreStats getDatastore() {
+			return datastore;
+		}
+
+		/**
+		 * Adds a request's Datastore usage, returning the kinds of waste this
+		 * endpoint had not shown before.
+		 */
+		public List<String> addDatastore(DatastoreStats request) {
+			request.addTo(datastore);
+			List<String> fresh = new ArrayList<>();
+			for(String waste : request.getWasted().keySet()) {
+				if(reportedWaste.add(waste))
+					fresh.add(waste);
+			}
+			return fresh;
+		}
+
+		public long getInFlight() {
+			return inFlight.sum();
+		}
+
+		public Map<Integer, Long> getStatuses() {
+			Map<Integer, Long> counts = new TreeMap<>();
+			for(Map.Entry<Integer, LongAdder> status : statuses.entrySet())
+				counts.put(status.getKey(), status.getValue().sum());
+			return counts;
+		}
+	}
+
+}
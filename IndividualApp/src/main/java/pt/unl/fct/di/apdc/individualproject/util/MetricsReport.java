@@ -0,0 +1,316 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of this instance's metrics, returned by /utils/metrics as JSON
+ * or in the Prometheus text format. Latencies are in milliseconds.
+ */
+public class MetricsReport {
+	
+	public List<EndpointStats> endpoints = new ArrayList<>();
+	public List<ExecutorStats> executors = new ArrayList<>();
+	public List<AdmissionStats> admission = new ArrayList<>();
+	public long tokenCacheHits;
+	public long tokenCacheMisses;
+	public int tokenCacheSize;
+	public long memcacheHits;
+	public long memcacheMisses;
+	public long memcacheConflicts;
+	public long memcacheErrors;
+	public int auditBuffered;
+	public long auditRecorded;
+	public long auditWritten;
+	public long auditDropped;
+	public long auditSpilled;
+	public long auditFailures;
+	public double auditFlushP50;
+	public double auditFlushP99;
+	public double auditFlushMax;
+	public long loginsAllowed;
+	public long loginsRejectedByUser;
+	public long loginsRejectedByIp;
+	public int loginBuckets;
+	public long transactionRetries;
+	public long transactionsGivenUp;
+	
+	public MetricsReport() {}
+	
+	public static MetricsReport collect() {
+		MetricsReport report = new MetricsReport();
+		for(Metrics.Endpoint endpoint : Metrics.getInstance().getEndpoints().values())
+			report.endpoints.add(new EndpointStats(endpoint));
+		report.executors.add(new ExecutorStats(AppExecutors.datastore()));
+		report.executors.add(new ExecutorStats(AppExecutors.hashing()));
+		report.executors.add(new ExecutorStats(AppExecutors.bulk()));
+		report.executors.add(new ExecutorStats(AppExecutors.lookup()));
+		for(AdmissionControl.Limiter limiter : AdmissionControl.getInstance().getLimiters())
+			report.admission.add(new AdmissionStats(limiter));
+		
+		TokenCache cache = TokenCache.getInstance();
+		report.tokenCacheHits = cache.getHits();
+		report.tokenCacheMisses = cache.getMisses();
+		report.tokenCacheSize = cache.size();
+		
+		SharedCache shared = SharedCache.getInstance();
+		report.memcacheHits = shared.getHits();
+		report.memcacheMisses = shared.getMisses();
+		report.memcacheConflicts = shared.getConflicts();
+		report.memcacheErrors = shared.getErrors();
+		
+		AuditLog audit = AuditLog.getInstance();
+		report.auditBuffered = audit.getBuffered();
+		report.auditRecorded = audit.getRecorded();
+		report.auditWritten = audit.getWritten();
+		report.auditDropped = audit.getDropped();
+		report.auditSpilled = audit.getSpilled();
+		report.auditFailures = audit.getFailures();
+		report.auditFlushP50 = audit.getFlushLatency().percentileMicros(0.5) / 1000.0;
+		report.auditFlushP99 = audit.getFlushLatency().percentileMicros(0.99) / 1000.0;
+		report.auditFlushMax = audit.getFlushLatency().getMaxMicros() / 1000.0;
+		
+		LoginThrottle throttle = LoginThrottle.getInstance();
+		report.loginsAllowed = throttle.getAllowed();
+		report.loginsRejectedByUser = throttle.getRejectedByUser();
+		report.loginsRejectedByIp = throttle.getRejectedByIp();
+		report.loginBuckets = throttle.size();
+		
+		report.transactionRetries = TransactionRunner.getInstance().getRetries();
+		report.transactionsGivenUp = TransactionRunner.getInstance().getGivenUp();
+		return report;
+	}
+	
+	public String toPrometheus() {
+		StringBuilder out = new StringBuilder(4096);
+		
+		out.append("# TYPE individualproject_request_duration_seconds summary\n");
+		for(EndpointStats endpoint : endpoints) {
+			String labels = "endpoint=\"" + endpoint.name + "\"";
+			sample(out, "individualproject_request_duration_seconds", labels + ",quantile=\"0.5\"", endpoint.p50 / 1000);
+			sample(out, "individualproject_request_duration_seconds", labels + ",quantile=\"0.95\"", endpoint.p95 / 1000);
+			sample(out, "individualproject_request_duration_seconds", labels + ",quantile=\"0.99\"", endpoint.p99 / 1000);
+			sample(out, "individualproject_request_duration_seconds_sum", labels, endpoint.sum / 1000);
+			sample(out, "individualproject_request_duration_seconds_count", labels, endpoint.count);
+		}
+		out.append("# TYPE individualproject_request_duration_seconds_max gauge\n");
+		for(EndpointStats endpoint : endpoints)
+			sample(out, "individualproject_request_duration_seconds_max", "endpoint=\"" + endpoint.name + "\"", endpoint.max / 1000);
+		out.append("# TYPE individualproject_requests_in_flight gauge\n");
+		for(EndpointStats endpoint : endpoints)
+			sample(out, "individualproject_requests_in_flight", "endpoint=\"" + endpoint.name + "\"", endpoint.inFlight);
+		out.append("# TYPE individualproject_responses_total counter\n");
+		for(EndpointStats endpoint : endpoints) {
+			for(Map.Entry<Integer, Long> status : endpoint.statuses.entrySet())
+				sample(out, "individualproject_responses_total", "endpoint=\"" + endpoint.name + "\",status=\"" + status.getKey() + "\"", status.getValue());
+		}
+		
+		out.append("# TYPE individualproject_datastore_rpcs_total counter\n");
+		for(EndpointStats endpoint : endpoints)
+			sample(out, "individualproject_datastore_rpcs_total", "endpoint=\"" + endpoint.name + "\"", endpoint.datastoreRpcs);
+		out.append("# TYPE individualproject_datastore_rpc_seconds_total counter\n");
+		for(EndpointStats endpoint : endpoints)
+			sample(out, "individualproject_datastore_rpc_seconds_total", "endpoint=\"" + endpoint.name + "\"", endpoint.datastoreTime / 1000);
+		out.append("# TYPE individualproject_datastore_operations_total counter\n");
+		for(EndpointStats endpoint : endpoints) {
+			String labels = "endpoint=\"" + endpoint.name + "\",op=";
+			sample(out, "individualproject_datastore_operations_total", labels + "\"read\"", endpoint.datastoreReads);
+			sample(out, "individualproject_datastore_operations_total", labels + "\"query\"", endpoint.datastoreQueries);
+			sample(out, "individualproject_datastore_operations_total", labels + "\"write\"", endpoint.datastoreWrites);
+			sample(out, "individualproject_datastore_operations_total", labels + "\"delete\"", endpoint.datastoreDeletes);
+			sample(out, "individualproject_datastore_operations_total", labels + "\"commit\"", endpoint.datastoreCommits);
+			sample(out, "individualproject_datastore_operations_total", labels + "\"rollback\"", endpoint.datastoreRollbacks);
+		}
+		out.append("# TYPE individualproject_datastore_aborted_total counter\n");
+		for(EndpointStats endpoint : endpoints) {
+			for(Map.Entry<String, Long> kind : endpoint.contention.entrySet())
+				sample(out, "individualproject_datastore_aborted_total", "endpoint=\"" + endpoint.name + "\",kind=\"" + kind.getKey() + "\"", kind.getValue());
+		}
+		out.append("# TYPE individualproject_transaction_retries_total counter\n");
+		for(EndpointStats endpoint : endpoints)
+			sample(out, "individualproject_transaction_retries_total", "endpoint=\"" + endpoint.name + "\"", endpoint.datastoreRetries);
+		out.append("# TYPE individualproject_transactions_given_up_total counter\n");
+		sample(out, "individualproject_transactions_given_up_total", null, transactionsGivenUp);
+		out.append("# TYPE individualproject_datastore_wasted_total counter\n");
+		for(EndpointStats endpoint : endpoints) {
+			for(Map.Entry<String, Long> waste : endpoint.wasted.entrySet())
+				sample(out, "individualproject_datastore_wasted_total", "endpoint=\"" + endpoint.name + "\",waste=\"" + waste.getKey() + "\"", waste.getValue());
+		}
+		
+		out.append("# TYPE individualproject_executor_tasks_total counter\n");
+		for(ExecutorStats executor : executors) {
+			String labels = "executor=\"" + executor.name + "\"";
+			sample(out, "individualproject_executor_tasks_total", labels + ",outcome=\"completed\"", executor.completed);
+			sample(out, "individualproject_executor_tasks_total", labels + ",outcome=\"failed\"", executor.failed);
+			sample(out, "individualproject_executor_tasks_total", labels + ",outcome=\"rejected\"", executor.rejected);
+		}
+		out.append("# TYPE individualproject_executor_active gauge\n");
+		for(ExecutorStats executor : executors)
+			sample(out, "individualproject_executor_active", "executor=\"" + executor.name + "\"", executor.active);
+		out.append("# TYPE individualproject_executor_queued gauge\n");
+		for(ExecutorStats executor : executors)
+			sample(out, "individualproject_executor_queued", "executor=\"" + executor.name + "\"", executor.queued);
+		out.append("# TYPE individualproject_executor_wait_seconds_max gauge\n");
+		for(ExecutorStats executor : executors)
+			sample(out, "individualproject_executor_wait_seconds_max", "executor=\"" + executor.name + "\"", executor.maxWait / 1000);
+		
+		out.append("# TYPE individualproject_admission_limit gauge\n");
+		for(AdmissionStats stats : admission)
+			sample(out, "individualproject_admission_limit", "class=\"" + stats.name + "\"", stats.limit);
+		out.append("# TYPE individualproject_admission_in_flight gauge\n");
+		for(AdmissionStats stats : admission)
+			sample(out, "individualproject_admission_in_flight", "class=\"" + stats.name + "\"", stats.inFlight);
+		out.append("# TYPE individualproject_admission_requests_total counter\n");
+		for(AdmissionStats stats : admission) {
+			sample(out, "individualproject_admission_requests_total", "class=\"" + stats.name + "\",result=\"admitted\"", stats.admitted);
+			sample(out, "individualproject_admission_requests_total", "class=\"" + stats.name + "\",result=\"rejected\"", stats.rejected);
+		}
+		
+		out.append("# TYPE individualproject_token_cache_requests_total counter\n");
+		sample(out, "individualproject_token_cache_requests_total", "result=\"hit\"", tokenCacheHits);
+		sample(out, "individualproject_token_cache_requests_total", "result=\"miss\"", tokenCacheMisses);
+		out.append("# TYPE individualproject_token_cache_size gauge\n");
+		sample(out, "individualproject_token_cache_size", null, tokenCacheSize);
+		
+		out.append("# TYPE individualproject_memcache_requests_total counter\n");
+		sample(out, "individualproject_memcache_requests_total", "result=\"hit\"", memcacheHits);
+		sample(out, "individualproject_memcache_requests_total", "result=\"miss\"", memcacheMisses);
+		out.append("# TYPE individualproject_memcache_conflicts_total counter\n");
+		sample(out, "individualproject_memcache_conflicts_total", null, memcacheConflicts);
+		out.append("# TYPE individualproject_memcache_errors_total counter\n");
+		sample(out, "individualproject_memcache_errors_total", null, memcacheErrors);
+		
+		out.append("# TYPE individualproject_audit_buffered gauge\n");
+		sample(out, "individualproject_audit_buffered", null, auditBuffered);
+		out.append("# TYPE individualproject_audit_events_total counter\n");
+		sample(out, "individualproject_audit_events_total", "result=\"recorded\"", auditRecorded);
+		sample(out, "individualproject_audit_events_total", "result=\"written\"", auditWritten);
+		sample(out, "individualproject_audit_events_total", "result=\"dropped\"", auditDropped);
+		sample(out, "individualproject_audit_events_total", "result=\"spilled\"", auditSpilled);
+		out.append("# TYPE individualproject_audit_flush_failures_total counter\n");
+		sample(out, "individualproject_audit_flush_failures_total", null, auditFailures);
+		out.append("# TYPE individualproject_audit_flush_seconds summary\n");
+		sample(out, "individualproject_audit_flush_seconds", "quantile=\"0.5\"", auditFlushP50 / 1000);
+		sample(out, "individualproject_audit_flush_seconds", "quantile=\"0.99\"", auditFlushP99 / 1000);
+		out.append("# TYPE individualproject_audit_flush_seconds_max gauge\n");
+		sample(out, "individualproject_audit_flush_seconds_max", null, auditFlushMax / 1000);
+		
+		out.append("# TYPE individualproject_login_attempts_total counter\n");
+		sample(out, "individualproject_login_attempts_total", "result=\"allowed\"", loginsAllowed);
+		sample(out, "individualproject_login_attempts_total", "result=\"rejected_user\"", loginsRejectedByUser);
+		sample(out, "individualproject_login_attempts_total", "result=\"rejected_ip\"", loginsRejectedByIp);
+		out.append("# TYPE individualproject_login_buckets gauge\n");
+		sample(out, "individualproject_login_buckets", null, loginBuckets);
+		return out.toString();
+	}
+	
+	private static void sample(StringBuilder out, String name, String labels, double value) {
+		out.append(name);
+		if(labels != null)
+			out.append('{').append(labels).append('}');
+		out.append(' ').append(value).append('\n');
+	}
+	
+	public static class EndpointStats {
+		public String name;
+		public long count;
+		public long inFlight;
+		public double p50;
+		public double p95;
+		public double p99;
+		public double max;
+		public double sum;
+		public Map<Integer, Long> statuses;
+		public long datastoreRpcs;
+		public double datastoreTime;
+		public long datastoreReads;
+		public long datastoreQueries;
+		public long datastoreWrites;
+		public long datastoreDeletes;
+		public long datastoreCommits;
+		public long datastoreRollbacks;
+		public long datastoreAborted;
+		public long datastoreRetries;
+		public Map<String, Long> contention;
+		public Map<String, Long> wasted;
+		
+		public EndpointStats() {}
+		
+		EndpointStats(Metrics.Endpoint endpoint) {
+			LatencyHistogram latency = endpoint.getLatency();
+			this.name = endpoint.getName();
+			this.count = latency.getCount();
+			this.inFlight = endpoint.getInFlight();
+			this.p50 = latency.percentileMicros(0.5) / 1000.0;
+			this.p95 = latency.percentileMicros(0.95) / 1000.0;
+			this.p99 = latency.percentileMicros(0.99) / 1000.0;
+			this.max = latency.getMaxMicros() / 1000.0;
+			this.sum = latency.getSumMicros() / 1000.0;
+			this.statuses = endpoint.getStatuses();
+			
+			DatastoreStats datastore = endpoint.getDatastore();
+			this.datastoreRpcs = datastore.getRpcs();
+			this.datastoreTime = datastore.getRpcMillis();
+			this.datastoreReads = datastore.getReads();
+			this.datastoreQueries = datastore.getQueries();
+			this.datastoreWrites = datastore.getWrites();
+			this.datastoreDeletes = datastore.getDeletes();
+			this.datastoreCommits = datastore.getCommits();
+			this.datastoreRollbacks = datastore.getRollbacks();
+			this.datastoreAborted = datastore.getAborted();
+			this.datastoreRetries = datastore.getRetries();
+			this.contention = datastore.getContention();
+			this.wasted = datastore.getWasted();
+		}
+	}
+	
+	public static class AdmissionStats {
+		public String name;
+		public int limit;
+		public int inFlight;
+		public long admitted;
+		public long rejected;
+		
+		public AdmissionStats() {}
+		
+		AdmissionStats(AdmissionControl.Limiter limiter) {
+			this.name = limiter.getName();
+			this.limit = limiter.getLimit();
+			this.inFlight = limiter.getInFlight();
+			this.admitted = limiter.getAdmitted();
+			this.rejected = limiter.getRejected();
+		}
+	}
+	
+	public static class ExecutorStats {
+		public String name;
+		public int active;
+		public int queued;
+		public long submitted;
+		public long completed;
+		public long failed;
+		public long rejected;
+		public double averageWait;
+		public double averageRun;
+		public double maxWait;
+		public double maxRun;
+		
+		public ExecutorStats() {}
+		
+		ExecutorStats(InstrumentedExecutor executor) {
+			this.name = executor.getName();
+			this.active = executor.getActive();
+			this.queued = executor.getQueued();
+			this.submitted = executor.getSubmitted();
+			this.completed = executor.getCompleted();
+			this.failed = executor.getFailed();
+			this.rejected = executor.getRejected();
+			this.averageWait = executor.getAverageWaitMillis();
+			this.averageRun = executor.getAverageRunMillis();
+			this.maxWait = executor.getMaxWaitMillis();
+			this.maxRun = executor.getMaxRunMillis();
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import com.google.appengine.repackaged.org.apache.commons.codec.digest.DigestUtils;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Transaction;
+
+/**
+ * Hashes and verifies passwords on the bounded hashing executor. When the
+ * executor is saturated the calls throw RejectedExecutionException straight
+ * away instead of queueing, so callers can answer 503.
+ * <p>
+ * Stored hashes are versioned. Hashes written before versioning are plain
+ * SHA-512 hex strings; new ones use the scheme chosen with
+ * individualproject.password.scheme (pbkdf2 or sha512) and look like
+ * $pbkdf2-sha256$iterations$salt$hash. Outdated hashes are upgraded after a
+ * successful login, off the request path.
+ */
+public class PasswordHasher {
+
+	public static final String SCHEME_PROPERTY = "individualproject.password.scheme";
+	public static final String ITERATIONS_PROPERTY = "individualproject.password.iterations";
+	public static final String PBKDF2 = "pbkdf2";
+	public static final String SHA512 = "sha512";
+
+	private static final Logger LOG = Logger.getLogger(PasswordHasher.class.getName());
+	private static final String PBKDF2_PREFIX = "$pbkdf2-sha256$";
+	private static final int SALT_BYTES = 16;
+	private static final int KEY_BITS = 256;
+
+	private static final PasswordHasher INSTANCE = new PasswordHasher(System.getProperty(SCHEME_PROPERTY, PBKDF2),
+			Integer.getInteger(ITERATIONS_PROPERTY, 10000), AppExecutors.hashing());
+
+	private final String scheme;
+	private final int iterations;
+	private final InstrumentedExecutor executor;
+	private final SecureRandom random = new SecureRandom();
+
+	public PasswordHasher(String scheme, int iterations, InstrumentedExecutor executor) {
+		if(!PBKDF2.equals(scheme) && !SHA512.equals(scheme))
+			throw new IllegalArgumentException("Unknown password scheme " + scheme);
+		this.scheme = scheme;
+		this.iterations = iterations;
+		this.executor = executor;
+	}
+
+	public static PasswordHasher getInstance() {
+		return INSTANCE;
+	}
+
+	public String hash(String password) {
+		return await(hashAsync(password));
+	}
+
+	/**
+	 * Starts hashing a password, so that it can run while the caller reads
+	 * from the Datastore. Wait for it with {@link #await(CompletableFuture)}.
+	 */
+	public CompletableFuture<String> hashAsync(String password) {
+		return CompletableFuture.supplyAsync(() -> compute(password), executor);
+	}
+
+	public boolean verify(String password, String stored) {
+		return await(CompletableFuture.supplyAsync(() -> matches(password, stored), executor));
+	}
+
+	/**
+	 * Whether a stored hash was made with an older scheme or fewer iterations
+	 * than the current configuration.
+	 */
+	public boolean needsUpgrade(String stored) {
+		if(!stored.startsWith(PBKDF2_PREFIX))
+			return PBKDF2.equals(scheme);
+		return SHA512.equals(scheme) || Integer.parseInt(stored.split("\\$")[2]) < iterations;
+	}
+
+	/**
+	 * Rehashes a just verified password with the current scheme and stores it,
+	 * unless the stored hash changed in the meantime. Runs in the background and
+	 * is skipped if the executors are busy, the next login will try again. The
+	 * cached user is invalidated on the caller's thread, as the request may be
+	 * over by the time the write commits; the write itself needs no request,
+	 * since it checks the stored hash in the Datastore.
+	 */
+	public void upgrade(String username, String password, String stored) {
+		try {
+			CompletableFuture<String> hash = CompletableFuture.supplyAsync(() -> compute(password), executor);
+			SharedCache.getInstance().invalidate(Storage.getKeys().userKey(username));
+			hash.thenAcceptAsync(h -> store(username, stored, h), AppExecutors.datastore())
+					.exceptionally(e -> {
+						LOG.log(Level.WARNING, "Could not upgrade password hash of " + username, e);
+						return null;
+					});
+		} catch(RejectedExecutionException e) {
+			LOG.fine("Hashing busy, not upgrading password hash of " + username);
+		}
+	}
+
+	public InstrumentedExecutor getExecutor() {
+		return executor;
+	}
+
+	private void store(String username, String stored, String hash) {
+		Datastore datastore = Storage.getDatastore();
+		Key userKey = Storage.getKeys().userKey(username);
+		Transaction txn = datastore.newTransaction();
+		try {
+			Entity user = txn.get(userKey);
+			if(user != null && stored.equals(user.getString("password"))) {
+				txn.put(new EntityPatch(user).set("password", hash).build());
+				txn.commit();
+			}
+		} finally {
+			if(txn.isActive())
+				txn.rollback();
+		}
+	}
+
+	private String compute(String password) {
+		if(SHA512.equals(scheme))
+			return DigestUtils.sha512Hex(password);
+
+		byte[] salt = new byte[SALT_BYTES];
+		random.nextBytes(salt);
+		Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+		return PBKDF2_PREFIX + iterations + "$" + encoder.encodeToString(salt) + "$"
+				+ encoder.encodeToString(pbkdf2(password, salt, iterations));
+	}
+
+	private static boolean matches(String password, String stored) {
+		if(!stored.startsWith(PBKDF2_PREFIX))
+			return MessageDigest.isEqual(DigestUtils.sha512Hex(password).getBytes(StandardCharsets.UTF_8),
+					stored.getBytes(StandardCharsets.UTF_8));
+
+		String[] parts = stored.split("\\$");
+		Base64.Decoder decoder = Base64.getDecoder();
+		byte[] expected = decoder.decode(parts[4]);
+		return MessageDigest.isEqual(pbkdf2(password, decoder.decode(parts[3]), Integer.parseInt(parts[2])), expected);
+	}
+
+	private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+		try {
+			PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_BITS);
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Waits for a hash, throwing what it failed with as is.
+	 */
+	public static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,221 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+
+/**
+ * Revoked signed tokens. Revocations are stored in the Revocation kind and
+ * mirrored per instance as a Bloom filter in front of exact maps, so that the
+ * common case (a token that was never revoked) is answered without touching
+ * the maps or the Datastore. The local copy is refreshed from the Datastore
+ * every REFRESH_INTERVAL (unless given another interval) to pick up revocations made by other instances, and
+ * only holds the unexpired ones. Revocations expire with the tokens they
+ * revoke and TokenSweeper deletes them.
+ */
+public class RevocationList {
+
+	public static final long REFRESH_INTERVAL = 1000 * 30; //30s
+
+	private static final Logger LOG = Logger.getLogger(RevocationList.class.getName());
+	private static final String TOKEN = "TOKEN";
+	private static final String USER = "USER";
+	private static final int BLOOM_BITS = 1 << 16;
+	private static final int BLOOM_HASHES = 4;
+
+	private final Datastore datastore;
+	private final KeyFactory revocationKeyFactory;
+	private final long refreshInterval;
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	private volatile Snapshot current = new Snapshot(0, 0);
+
+	public RevocationList(Datastore datastore) {
+		this(datastore, REFRESH_INTERVAL);
+	}
+
+	public RevocationList(Datastore datastore, long refreshInterval) {
+		this.datastore = datastore;
+		this.revocationKeyFactory = datastore.newKeyFactory().setKind("Revocation");
+		this.refreshInterval = refreshInterval;
+	}
+
+	public boolean isRevoked(AuthToken at) {
+		refreshIfStale();
+		Snapshot snapshot = current;
+
+		if(snapshot.bloom.mightContain(TOKEN + at.tokenID) && snapshot.tokens.containsKey(at.tokenID))
+			return true;
+
+		if(snapshot.bloom.mightContain(USER + at.username)) {
+			Long revokedAt = snapshot.users.get(at.username);
+			return revokedAt != null && at.creationData <= revokedAt;
+		}
+		return false;
+	}
+
+	/**
+	 * Entity revoking a single token, to be written in the caller's transaction.
+	 */
+	public Entity tokenRevocation(AuthToken at) {
+		return Entity.newBuilder(revocationKeyFactory.newKey(TOKEN + ":" + at.tokenID))
+				.set("type", TOKEN)
+				.set("value", at.tokenID)
+				.set("revokedAt", System.currentTimeMillis())
+				.set("expirationData", at.expirationData)
+				.build();
+	}
+
+	/**
+	 * Entity revoking every token issued to a user up to now, to be written in
+	 * the caller's transaction.
+	 */
+	public Entity userRevocation(String username) {
+		long now = System.currentTimeMillis();
+		return Entity.newBuilder(revocationKeyFactory.newKey(USER + ":" + username))
+				.set("type", USER)
+				.set("value", username)
+				.set("revokedAt", now)
+				.set("expirationData", now + AuthToken.EXPIRATION_TIME)
+				.build();
+	}
+
+	/**
+	 * Applies a committed revocation to the local copy.
+	 */
+	public void add(Entity revocation) {
+		current.add(revocation);
+	}
+
+	private void refreshIfStale() {
+		if(System.currentTimeMillis() - current.loadedAt < refreshInterval || !refreshing.compareAndSet(false, true))
+			return;
+
+		try {
+			long now = System.currentTimeMillis();
+			Query<Entity> query = Query.newEntityQueryBuilder()
+					.setKind("Revocation")
+					.setFilter(PropertyFilter.gt("expirationData", now))
+					.build();
+			List<Entity> revocations = new ArrayList<>();
+			QueryResults<Entity> results = datastore.run(query);
+			while(results.hasNext())
+				revocations.add(results.next());
+
+			Snapshot snapshot = new Snapshot(now, revocations.size());
+			for(Entity revocation : revocations)
+				snapshot.add(revocation);
+
+			// Query results are eventually consistent, keep what this instance already knows
+			current.copyUnexpired(snapshot, now);
+			current = snapshot;
+		} catch(Exception e) {
+			LOG.log(Level.WARNING, "Could not refresh revocation list", e);
+		} finally {
+			refreshing.set(false);
+		}
+	}
+
+	private static class Snapshot {
+		final long loadedAt;
+		final BloomFilter bloom;
+		final Map<String, Long> tokens = new ConcurrentHashMap<>();
+		final Map<String, Long> users = new ConcurrentHashMap<>();
+		final Map<String, Long> userExpirations = new ConcurrentHashMap<>();
+
+		Snapshot(long loadedAt, int expected) {
+			this.loadedAt = loadedAt;
+			// about 16 bits per revocation keeps false positives well under 1%
+			int bits = BLOOM_BITS;
+			while(bits < expected * 16L && bits < 1 << 30)
+				bits <<= 1;
+			this.bloom = new BloomFilter(bits, BLOOM_HASHES);
+		}
+
+		void add(Entity revocation) {
+			String type = revocation.getString("type");
+			String value = revocation.getString("value");
+			long expirationData = revocation.getLong("expirationData");
+
+			if(TOKEN.equals(type)) {
+				tokens.put(value, expirationData);
+			} else {
+				users.merge(value, revocation.getLong("revokedAt"), Math::max);
+				userExpirations.merge(value, expirationData, Math::max);
+			}
+			bloom.add(type + value);
+		}
+
+		void copyUnexpired(Snapshot target, long now) {
+			for(Map.Entry<String, Long> e : tokens.entrySet()) {
+				if(e.getValue() > now && target.tokens.putIfAbsent(e.getKey(), e.getValue()) == null)
+					target.bloom.add(TOKEN + e.getKey());
+			}
+			for(Map.Entry<String, Long> e : users.entrySet()) {
+				Long expirationData = userExpirations.get(e.getKey());
+				if(expirationData != null && expirationData > now) {
+					target.users.merge(e.getKey(), e.getValue(), Math::max);
+					target.userExpirations.merge(e.getKey(), expirationData, Math::max);
+					target.bloom.add(USER + e.getKey());
+				}
+			}
+		}
+	}
+
+	private static class BloomFilter {
+		private final AtomicLongArray bits;
+		private final int size;
+		private final int hashes;
+
+		BloomFilter(int size, int hashes) {
+			this.bits = new AtomicLongArray(size / 64);
+			this.size = size;
+			this.hashes = hashes;
+		}
+
+		void add(String value) {
+			int h1 = value.hashCode();
+			int h2 = mix(h1);
+			for(int i = 0; i < hashes; i++) {
+				int bit = Math.floorMod(h1 + i * h2, size);
+				long mask = 1L << (bit & 63);
+				long word;
+				do {
+					word = bits.get(bit >>> 6);
+				} while((word & mask) == 0 && !bits.compareAndSet(bit >>> 6, word, word | mask));
+			}
+		}
+
+		boolean mightContain(String value) {
+			int h1 = value.hashCode();
+			int h2 = mix(h1);
+			for(int i = 0; i < hashes; i++) {
+				int bit = Math.floorMod(h1 + i * h2, size);
+				if((bits.get(bit >>> 6) & (1L << (bit & 63))) == 0)
+					return false;
+			}
+			return true;
+		}
+
+		private static int mix(int h) {
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			h *= 0xc2b2ae35;
+			h ^= h >>> 16;
+			return h | 1;
+		}
+	}
+
+}
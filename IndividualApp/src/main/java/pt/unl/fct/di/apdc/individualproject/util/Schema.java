@@ -0,0 +1,117 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.ListValue;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.TimestampValue;
+import com.google.cloud.datastore.Value;
+import com.google.cloud.datastore.ValueType;
+
+/**
+ * Declares which properties of the User, Profile and Token kinds are indexed.
+ * Only those some query filters or projects on are: the /user/list and
+ * suggestion properties of Profile and the expiry the token sweep looks for.
+ * The rest is written unindexed, so writes do not pay for index rows nobody
+ * reads.
+ * <p>
+ * Entities of these kinds are passed through {@link #conform(Entity)} before
+ * being written (EntityPatch does it when building), and SchemaMigration
+ * rewrites the ones stored before. Other kinds are left as they are.
+ */
+public class Schema {
+
+	/**
+	 * Creation time of a User, a timestamp. Older entities have it as a
+	 * string in LEGACY_TIMESTAMP_FORMAT.
+	 */
+	public static final String CREATION_TIMESTAMP = "creation_timestamp";
+	public static final String LEGACY_TIMESTAMP_FORMAT = "dd-MM-yyyy HH:mm:ss";
+
+	private static final Map<String, Set<String>> INDEXED = new HashMap<>();
+	static {
+		INDEXED.put("User", Collections.emptySet());
+		INDEXED.put("Profile", new HashSet<>(Arrays.asList(ListData.PROPERTIES)));
+		INDEXED.put("Token", Collections.singleton("expirationData"));
+	}
+
+	private Schema() {}
+
+	public static boolean isDeclared(String kind) {
+		return INDEXED.containsKey(kind);
+	}
+
+	public static boolean isIndexed(String kind, String property) {
+		Set<String> indexed = INDEXED.get(kind);
+		return indexed == null || indexed.contains(property);
+	}
+
+	/**
+	 * The entity laid out as declared: properties indexed or not as declared
+	 * and the User creation time as a timestamp. Returns the same instance if
+	 * it already is, so callers can tell whether anything changed.
+	 */
+	public static Entity conform(Entity entity) {
+		String kind = entity.getKey().getKind();
+		if(!isDeclared(kind))
+			return entity;
+
+		Entity.Builder builder = null;
+		for(String name : entity.getNames()) {
+			Value<?> value = entity.getValue(name);
+			Value<?> conformed = value;
+			if(kind.equals("User") && name.equals(CREATION_TIMESTAMP) && value.getType() == ValueType.STRING) {
+				Timestamp parsed = parseLegacy(((StringValue) value).get());
+				if(parsed != null)
+					conformed = TimestampValue.of(parsed);
+			}
+			boolean excluded = !isIndexed(kind, name);
+			if(!(conformed instanceof ListValue) && conformed.excludeFromIndexes() != excluded)
+				conformed = conformed.toBuilder().setExcludeFromIndexes(excluded).build();
+			if(conformed != value) {
+				if(builder == null)
+					builder = Entity.newBuilder(entity);
+				builder.set(name, conformed);
+			}
+		}
+		return builder == null ? entity : builder.build();
+	}
+
+	/**
+	 * When the user was created, null if unknown or unreadable. Reads both
+	 * layouts.
+	 */
+	public static Timestamp creationTime(Entity user) {
+		if(!user.contains(CREATION_TIMESTAMP))
+			return null;
+		Value<?> value = user.getValue(CREATION_TIMESTAMP);
+		if(value.getType() == ValueType.TIMESTAMP)
+			return ((TimestampValue) value).get();
+		if(value.getType() == ValueType.STRING)
+			return parseLegacy(((StringValue) value).get());
+		return null;
+	}
+
+	public static String formatLegacy(Timestamp timestamp) {
+		return new SimpleDateFormat(LEGACY_TIMESTAMP_FORMAT).format(timestamp.toDate());
+	}
+
+	// null if it cannot be read, such a value is kept as a string
+	private static Timestamp parseLegacy(String timestamp) {
+		try {
+			return Timestamp.of(new SimpleDateFormat(LEGACY_TIMESTAMP_FORMAT).parse(timestamp));
+		} catch(ParseException e) {
+			return null;
+		}
+	}
+
+}
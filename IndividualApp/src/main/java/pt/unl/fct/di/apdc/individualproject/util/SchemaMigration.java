@@ -0,0 +1,120 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.datastore.Cursor;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyQuery;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+
+/**
+ * Rewrites stored User, Profile and Token entities into the layout their
+ * {@link Schema} declares. Works like TokenSweeper: a run walks a keys-only
+ * query in batches of BATCH_SIZE, re-reading and rewriting each batch in a
+ * transaction, and after MAX_BATCHES enqueues a task on the migration queue
+ * that resumes from its cursor CONTINUE_DELAY later. The queue runs one task
+ * at a time, so the migration never competes much with user traffic.
+ * <p>
+ * Entities already in the declared layout are not written, so a migration
+ * can be started again at any time and a failed task retried. A batch is
+ * retried while it is contended; if it still fails the run fails, so the
+ * queue retries its task from the same cursor instead of the batch being
+ * skipped.
+ */
+public class SchemaMigration {
+
+	public static final String[] KINDS = { "User", "Profile", "Token" };
+	public static final int BATCH_SIZE = 100;
+	public static final int MAX_BATCHES = 10;
+	public static final long CONTINUE_DELAY = 1000 * 5; //5s
+
+	private static final Logger LOG = Logger.getLogger(SchemaMigration.class.getName());
+	private static final SchemaMigration INSTANCE = new SchemaMigration(Storage.getDatastore());
+
+	private final Datastore datastore;
+	private final TransactionRunner transactions = TransactionRunner.getInstance();
+
+	public SchemaMigration(Datastore datastore) {
+		this.datastore = datastore;
+	}
+
+	public static SchemaMigration getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Migrates the entities of the given kind from the cursor (null to start
+	 * it), then those of the kinds after it. Returns the number of entities
+	 * rewritten in this run.
+	 */
+	public int migrate(String kind, String cursor) throws Exception {
+		int kindIndex = Arrays.asList(KINDS).indexOf(kind);
+		if(kindIndex < 0)
+			throw new IllegalArgumentException("No schema for kind " + kind);
+
+		int rewritten = 0;
+		Cursor start = cursor == null ? null : Cursor.fromUrlSafe(cursor);
+
+		for(int batch = 0; batch < MAX_BATCHES; batch++) {
+			KeyQuery.Builder query = Query.newKeyQueryBuilder()
+					.setKind(KINDS[kindIndex])
+					.setLimit(BATCH_SIZE);
+			if(start != null)
+				query.setStartCursor(start);
+
+			QueryResults<Key> results = datastore.run(query.build());
+			List<Key> keys = new ArrayList<>(BATCH_SIZE);
+			while(results.hasNext())
+				keys.add(results.next());
+
+			if(!keys.isEmpty())
+				rewritten += rewrite(keys);
+			start = results.getCursorAfter();
+
+			if(keys.size() < BATCH_SIZE) {
+				LOG.info("Schema migration of " + KINDS[kindIndex] + " done, " + rewritten + " rewritten in this run.");
+				if(++kindIndex == KINDS.length)
+					return rewritten;
+				start = null;
+			}
+		}
+
+		TaskOptions task = TaskOptions.Builder.withUrl("/rest/utils/migrate/schema")
+				.param("kind", KINDS[kindIndex])
+				.countdownMillis(CONTINUE_DELAY);
+		if(start != null)
+			task.param("cursor", start.toUrlSafe());
+		QueueFactory.getQueue("migration").add(task);
+		LOG.info("Schema migration continues later at " + KINDS[kindIndex] + ", " + rewritten + " rewritten in this run.");
+		return rewritten;
+	}
+
+	private int rewrite(List<Key> keys) throws Exception {
+		// contention is a request writing one of these meanwhile, the retry re-reads it
+		return transactions.call(txn -> {
+			List<Entity> changed = new ArrayList<>(keys.size());
+			for(Entity entity : txn.fetch(keys.toArray(new Key[0]))) {
+				if(entity == null)
+					continue;
+				Entity conformed = Schema.conform(entity);
+				if(conformed != entity)
+					changed.add(conformed);
+			}
+			if(changed.isEmpty())
+				return 0;
+
+			txn.put(changed.toArray(new Entity[0]));
+			txn.commit();
+			return changed.size();
+		});
+	}
+
+}
@@ -0,0 +1,37 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import javax.ws.rs.core.Feature;
+import javax.ws.rs.core.FeatureContext;
+
+import org.glassfish.hk2.utilities.binding.AbstractBinder;
+
+import com.google.cloud.datastore.Datastore;
+
+/**
+ * Makes the shared services available for injection into the resources and
+ * registers the shared JSON mapper.
+ */
+public class ServicesFeature implements Feature {
+
+	@Override
+	public boolean configure(FeatureContext context) {
+		context.register(JsonMapper.class);
+		context.register(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(Storage.getDatastore()).to(Datastore.class);
+				bind(Storage.getKeys()).to(Keys.class);
+				bind(TokenVerifier.getInstance()).to(TokenVerifier.class);
+				bind(PasswordHasher.getInstance()).to(PasswordHasher.class);
+				bind(ComputeJobs.getInstance()).to(ComputeJobs.class);
+				bind(SuggestIndex.getInstance()).to(SuggestIndex.class);
+				bind(LoginThrottle.getInstance()).to(LoginThrottle.class);
+				bind(TransactionRunner.getInstance()).to(TransactionRunner.class);
+				bind(SharedCache.getInstance()).to(SharedCache.class);
+				bind(AuditLog.getInstance()).to(AuditLog.class);
+			}
+		});
+		return true;
+	}
+
+}
@@ -0,0 +1,347 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.CasValues;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.apphosting.api.ApiProxy;
+import com.google.cloud.datastore.DatastoreReader;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+
+/**
+ * Read-through, write-through cache of the User, Profile and Token entities
+ * in App Engine memcache, so that every instance sees the same entries.
+ * Missing entities are cached too, so that a token that does not exist is not
+ * looked up again.
+ * <p>
+ * Reads that miss load from the Datastore and add the result only if no
+ * entry appeared in the meantime. Writes go through {@link CachedDatastore}:
+ * a transaction remembers the memcache version of the cached entities it
+ * reads, before reading them, and once it commits replaces them with
+ * compare-and-set. If the entry changed since (another writer, or a reader
+ * that loaded an older value) the entry is deleted instead, and re-adding it
+ * is blocked for a moment so that a slow reader cannot put back what it read
+ * before the commit.
+ * <p>
+ * Memcache errors are logged and count as misses, falling back to the
+ * Datastore. The cache is off when individualproject.memcache=false and on
+ * threads without an App Engine environment (outside App Engine, or on a
+ * thread the request did not hand it to, see AppExecutors.propagate).
+ */
+public class SharedCache {
+
+	public static final String ENABLED = "individualproject.memcache";
+	public static final String TTL = "individualproject.memcache.ttl";
+	public static final Set<String> KINDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("User", "Profile", "Token")));
+
+	private static final Logger LOG = Logger.getLogger(SharedCache.class.getName());
+	private static final int NO_READD_MILLIS = 2000;
+	private static final SharedCache INSTANCE = new SharedCache(MemcacheServiceFactory.getMemcacheService("individualproject"),
+			!"false".equals(System.getProperty(ENABLED)), Integer.getInteger(TTL, 600));
+
+	private final MemcacheService memcache;
+	private final boolean enabled;
+	private final Expiration expiration;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder conflicts = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+
+	public SharedCache(MemcacheService memcache, boolean enabled, int ttlSeconds) {
+		this.memcache = memcache;
+		this.enabled = enabled;
+		this.expiration = Expiration.byDeltaSeconds(ttlSeconds);
+	}
+
+	public static SharedCache getInstance() {
+		return INSTANCE;
+	}
+
+	public boolean isEnabled() {
+		return enabled && ApiProxy.getCurrentEnvironment() != null;
+	}
+
+	public static boolean isCached(Key key) {
+		return KINDS.contains(key.getKind());
+	}
+
+	/**
+	 * The entity with the given key, or null if it does not exist, loading
+	 * it with the loader on a miss.
+	 */
+	public Entity get(Key key, Supplier<Entity> loader) {
+		if(!isCached(key) || !isEnabled())
+			return loader.get();
+
+		try {
+			Object cached = memcache.get(id(key));
+			if(cached instanceof Cached) {
+				hits.increment();
+				return ((Cached) cached).entity;
+			}
+		} catch(RuntimeException e) {
+			failed("get", e);
+			return loader.get();
+		}
+		misses.increment();
+		Entity entity = loader.get();
+		add(Collections.singletonMap(key, entity));
+		return entity;
+	}
+
+	/**
+	 * Entities for the given keys, in order and null where missing. Misses
+	 * are read from the reader with one lookup.
+	 */
+	public List<Entity> fetch(DatastoreReader reader, Key... keys) {
+		if(!isEnabled())
+			return reader.fetch(keys);
+
+		Map<String, Key> ids = new LinkedHashMap<>();
+		for(Key key : keys) {
+			if(isCached(key))
+				ids.put(id(key), key);
+		}
+		Map<Key, Entity> found = new HashMap<>();
+		try {
+			for(Map.Entry<String, Object> entry : memcache.getAll(ids.keySet()).entrySet()) {
+				if(entry.getValue() instanceof Cached)
+					found.put(ids.get(entry.getKey()), ((Cached) entry.getValue()).entity);
+			}
+		} catch(RuntimeException e) {
+			failed("getAll", e);
+		}
+		hits.add(found.size());
+
+		List<Key> missing = new ArrayList<>();
+		for(Key key : keys) {
+			if(!found.containsKey(key))
+				missing.add(key);
+		}
+		if(!missing.isEmpty()) {
+			misses.add(missing.size());
+			Map<Key, Entity> loaded = new HashMap<>();
+			Iterator<Entity> it = reader.fetch(missing.toArray(new Key[missing.size()])).iterator();
+			for(Key key : missing) {
+				Entity entity = it.next();
+				found.put(key, entity);
+				if(isCached(key))
+					loaded.put(key, entity);
+			}
+			add(loaded);
+		}
+
+		List<Entity> entities = new ArrayList<>(keys.length);
+		for(Key key : keys)
+			entities.add(found.get(key));
+		return entities;
+	}
+
+	/**
+	 * A reader for read-only handlers that looks entities up in the cache
+	 * before the Datastore. Queries go to the Datastore.
+	 */
+	public DatastoreReader reader(DatastoreReader reader) {
+		return new DatastoreReader() {
+			@Override
+			public Entity get(Key key) {
+				return SharedCache.this.get(key, () -> reader.get(key));
+			}
+
+			@Override
+			public Iterator<Entity> get(Key... keys) {
+				List<Entity> found = new ArrayList<>();
+				for(Entity entity : fetch(keys)) {
+					if(entity != null)
+						found.add(entity);
+				}
+				return found.iterator();
+			}
+
+			@Override
+			public List<Entity> fetch(Key... keys) {
+				return SharedCache.this.fetch(reader, keys);
+			}
+
+			@Override
+			public <T> QueryResults<T> run(Query<T> query) {
+				return reader.run(query);
+			}
+		};
+	}
+
+	/**
+	 * Drops the entries of entities about to be written outside a request,
+	 * where the commit cannot update them. Re-adding them is blocked for a
+	 * moment, so a reader does not put back the old entity before the write.
+	 */
+	public void invalidate(Key... keys) {
+		if(!isEnabled())
+			return;
+		Set<String> ids = new HashSet<>();
+		for(Key key : keys) {
+			if(isCached(key))
+				ids.add(id(key));
+		}
+		try {
+			memcache.deleteAll(ids, NO_READD_MILLIS);
+		} catch(RuntimeException e) {
+			LOG.log(Level.SEVERE, "Could not invalidate cached entities " + ids + ", they may be stale", e);
+		}
+	}
+
+	/**
+	 * The current memcache versions of the cached entities a transaction is
+	 * about to read, null for those without an entry. Empty when the cache
+	 * is off or unavailable, in which case a commit only deletes entries.
+	 */
+	Map<Key, IdentifiableValue> watch(Collection<Key> keys) {
+		Map<Key, IdentifiableValue> versions = new HashMap<>();
+		if(keys.isEmpty() || !isEnabled())
+			return versions;
+
+		Map<String, Key> ids = new HashMap<>();
+		for(Key key : keys)
+			ids.put(id(key), key);
+		try {
+			Map<String, IdentifiableValue> found = memcache.getIdentifiables(ids.keySet());
+			for(Map.Entry<String, Key> entry : ids.entrySet())
+				versions.put(entry.getValue(), found.get(entry.getKey()));
+		} catch(RuntimeException e) {
+			failed("getIdentifiables", e);
+		}
+		return versions;
+	}
+
+	/**
+	 * Stores what a committed transaction wrote (null for deletes): replaces
+	 * the entries it watched if they are unchanged, adds those that had none,
+	 * and deletes the rest.
+	 */
+	void committed(Map<Key, IdentifiableValue> watched, Map<Key, Entity> written) {
+		if(written.isEmpty() || !isEnabled())
+			return;
+
+		Map<String, CasValues> replace = new HashMap<>();
+		Map<String, Cached> add = new HashMap<>();
+		Set<String> delete = new HashSet<>();
+		for(Map.Entry<Key, Entity> entry : written.entrySet()) {
+			String id = id(entry.getKey());
+			if(!watched.containsKey(entry.getKey()))
+				delete.add(id);
+			else if(watched.get(entry.getKey()) == null)
+				add.put(id, new Cached(entry.getValue()));
+			else
+				replace.put(id, new CasValues(watched.get(entry.getKey()), new Cached(entry.getValue()), expiration));
+		}
+
+		try {
+			if(!replace.isEmpty()) {
+				Set<String> replaced = memcache.putIfUntouched(replace);
+				for(String id : replace.keySet()) {
+					if(!replaced.contains(id))
+						delete.add(id);
+				}
+			}
+			if(!add.isEmpty()) {
+				Set<String> added = memcache.putAll(add, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+				for(String id : add.keySet()) {
+					if(!added.contains(id))
+						delete.add(id);
+				}
+			}
+			if(!delete.isEmpty()) {
+				conflicts.add(delete.size());
+				memcache.deleteAll(delete, NO_READD_MILLIS);
+			}
+		} catch(RuntimeException e) {
+			failed("write", e);
+			try {
+				Set<String> all = new HashSet<>(delete);
+				all.addAll(replace.keySet());
+				all.addAll(add.keySet());
+				memcache.deleteAll(all, NO_READD_MILLIS);
+			} catch(RuntimeException again) {
+				LOG.log(Level.SEVERE, "Could not invalidate cached entities " + written.keySet() + ", they may be stale", again);
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Entries deleted after a write, because they were not watched or changed
+	 * before they could be replaced.
+	 */
+	public long getConflicts() {
+		return conflicts.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	private void add(Map<Key, Entity> loaded) {
+		if(loaded.isEmpty())
+			return;
+		Map<String, Cached> values = new HashMap<>();
+		for(Map.Entry<Key, Entity> entry : loaded.entrySet())
+			values.put(id(entry.getKey()), new Cached(entry.getValue()));
+		try {
+			memcache.putAll(values, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		} catch(RuntimeException e) {
+			failed("putAll", e);
+		}
+	}
+
+	private void failed(String operation, RuntimeException e) {
+		errors.increment();
+		LOG.log(Level.WARNING, "Memcache " + operation + " failed, using the Datastore", e);
+	}
+
+	private static String id(Key key) {
+		return key.toUrlSafe();
+	}
+
+	/**
+	 * A cache entry, holding null for entities that do not exist.
+	 */
+	private static class Cached implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final Entity entity;
+
+		Cached(Entity entity) {
+			this.entity = entity;
+		}
+	}
+
+}
@@ -0,0 +1,43 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+
+/**
+ * Process-wide Datastore client and key factories. Created on first use
+ * (normally by the warmup request) and shared by every request afterwards.
+ * The client is instrumented, see {@link InstrumentedDatastore}, and keeps
+ * memcache up to date, see {@link CachedDatastore}.
+ * <p>
+ * Tools that run the application outside App Engine, such as the load test,
+ * can give it another client with {@link #use(Datastore)} before first use.
+ */
+public class Storage {
+
+	private static volatile Datastore client;
+
+	private Storage() {}
+
+	private static class Holder {
+		static final Datastore DATASTORE = CachedDatastore.wrap(InstrumentedDatastore.wrap(
+				client != null ? client : DatastoreOptions.getDefaultInstance().getService()));
+		static final Keys KEYS = new Keys(DATASTORE);
+	}
+
+	/**
+	 * Makes the application use this client instead of the default one. Only
+	 * has an effect before the client is first used.
+	 */
+	public static void use(Datastore datastore) {
+		client = datastore;
+	}
+
+	public static Datastore getDatastore() {
+		return Holder.DATASTORE;
+	}
+
+	public static Keys getKeys() {
+		return Holder.KEYS;
+	}
+
+}
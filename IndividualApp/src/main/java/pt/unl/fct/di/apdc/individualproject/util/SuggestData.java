@@ -0,0 +1,22 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+public class SuggestData extends UserData {
+	
+	//FIELDS
+	public static final String USERNAME = "username";
+	public static final String LOCALITY = "locality";
+	
+	public static final int DEFAULT_LIMIT = 10;
+	public static final int MAX_LIMIT = 50;
+	
+	public String field;
+	public String prefix;
+	public int limit;
+	
+	public SuggestData() {}
+	
+	public int suggestions() {
+		return limit == 0 ? DEFAULT_LIMIT : limit;
+	}
+
+}
@@ -0,0 +1,192 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.ProjectionEntity;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+
+/**
+ * In-memory prefix index over usernames and localities for type-ahead search.
+ * Both are kept in sorted skip lists, so a lookup is a range scan starting at
+ * the prefix. The index is built from a keys-only scan of User and a
+ * projection of Profile.locality, updated as this instance changes users,
+ * and rebuilt every REBUILD_INTERVAL to pick up changes made elsewhere.
+ */
+public class SuggestIndex {
+
+	public static final long REBUILD_INTERVAL = Long.getLong("individualproject.suggest.rebuild", 300) * 1000;
+
+	private static final Logger LOG = Logger.getLogger(SuggestIndex.class.getName());
+	private static final SuggestIndex INSTANCE = new SuggestIndex(Storage.getDatastore());
+
+	private final Datastore datastore;
+	private final AtomicBoolean rebuilding = new AtomicBoolean();
+	private volatile Snapshot current = new Snapshot(0);
+	/**
+	 * Updates made while a rebuild is running, replayed on the new snapshot.
+	 */
+	private volatile Queue<String[]> journal;
+
+	public SuggestIndex(Datastore datastore) {
+		this.datastore = datastore;
+	}
+
+	public static SuggestIndex getInstance() {
+		return INSTANCE;
+	}
+
+	public List<String> usernames(String prefix, int limit) {
+		rebuildIfStale();
+		return first(current.usernames.subSet(prefix, true, prefix + Character.MAX_VALUE, false), limit);
+	}
+
+	/**
+	 * Localities starting with the prefix, ignoring case.
+	 */
+	public List<String> localities(String prefix, int limit) {
+		rebuildIfStale();
+		return first(current.localities.subMap(prefix, true, prefix + Character.MAX_VALUE, false).navigableKeySet(), limit);
+	}
+
+	/**
+	 * Records a user created or changed by this instance, after its commit.
+	 */
+	public void put(String username, String locality) {
+		apply(new String[] { username, locality == null ? "" : locality });
+	}
+
+	/**
+	 * Records a user deleted by this instance, after its commit.
+	 */
+	public void remove(String username) {
+		apply(new String[] { username });
+	}
+
+	private void apply(String[] update) {
+		current.apply(update);
+		Queue<String[]> pending = journal;
+		if(pending != null)
+			pending.add(update);
+	}
+
+	private void rebuildIfStale() {
+		Snapshot snapshot = current;
+		if(System.currentTimeMillis() - snapshot.loadedAt < REBUILD_INTERVAL)
+			return;
+
+		if(snapshot.loadedAt == 0) {
+			// nothing to serve yet, build it in this request
+			rebuild();
+			return;
+		}
+		try {
+			AppExecutors.datastore().execute(this::rebuild);
+		} catch(RejectedExecutionException e) {
+			// try again on the next lookup
+		}
+	}
+
+	/**
+	 * Builds a new snapshot from the Datastore and swaps it in.
+	 */
+	public void rebuild() {
+		if(!rebuilding.compareAndSet(false, true))
+			return;
+
+		Queue<String[]> pending = new ConcurrentLinkedQueue<>();
+		journal = pending;
+		try {
+			long start = System.currentTimeMillis();
+			Snapshot snapshot = new Snapshot(start);
+
+			QueryResults<Key> users = datastore.run(Query.newKeyQueryBuilder().setKind("User").build());
+			while(users.hasNext())
+				snapshot.apply(new String[] { users.next().getName(), "" });
+
+			QueryResults<ProjectionEntity> profiles = datastore.run(Query.newProjectionEntityQueryBuilder()
+					.setKind("Profile")
+					.setProjection("locality")
+					.build());
+			while(profiles.hasNext()) {
+				ProjectionEntity profile = profiles.next();
+				if(snapshot.userLocalities.containsKey(profile.getKey().getName()))
+					snapshot.apply(new String[] { profile.getKey().getName(), profile.getString("locality") });
+			}
+
+			for(String[] update : pending)
+				snapshot.apply(update);
+			current = snapshot;
+			journal = null;
+			// updates that raced with the swap went to the old snapshot only
+			for(String[] update : pending)
+				snapshot.apply(update);
+
+			LOG.fine("Suggest index rebuilt with " + snapshot.usernames.size() + " users in "
+					+ (System.currentTimeMillis() - start) + "ms.");
+		} catch(Exception e) {
+			journal = null;
+			LOG.log(Level.WARNING, "Could not rebuild suggest index", e);
+		} finally {
+			rebuilding.set(false);
+		}
+	}
+
+	private static List<String> first(NavigableSet<String> matches, int limit) {
+		List<String> result = new ArrayList<>(Math.min(limit, 16));
+		for(String match : matches) {
+			if(result.size() >= limit)
+				break;
+			result.add(match);
+		}
+		return result;
+	}
+
+	private static class Snapshot {
+		final long loadedAt;
+		final ConcurrentSkipListSet<String> usernames = new ConcurrentSkipListSet<>();
+		/**
+		 * Number of users in each locality, so a locality goes away with its last user.
+		 */
+		final ConcurrentSkipListMap<String, Integer> localities = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+		final Map<String, String> userLocalities = new ConcurrentHashMap<>();
+
+		Snapshot(long loadedAt) {
+			this.loadedAt = loadedAt;
+		}
+
+		/**
+		 * Applies {username, locality} as a put and {username} as a remove.
+		 */
+		void apply(String[] update) {
+			String username = update[0];
+			String old;
+			if(update.length == 1) {
+				usernames.remove(username);
+				old = userLocalities.remove(username);
+			} else {
+				usernames.add(username);
+				old = userLocalities.put(username, update[1]);
+				if(!update[1].isEmpty() && !update[1].equals(old))
+					localities.merge(update[1], 1, Integer::sum);
+			}
+			if(old != null && !old.isEmpty() && (update.length == 1 || !old.equals(update[1])))
+				localities.computeIfPresent(old, (locality, count) -> count > 1 ? count - 1 : null);
+		}
+	}
+
+}
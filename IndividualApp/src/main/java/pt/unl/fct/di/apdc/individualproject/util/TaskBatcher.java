@@ -0,0 +1,63 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Buffers tasks for a queue and adds them in batches, one RPC per
+ * {@value #MAX_BATCH} tasks instead of one per task. Named tasks that already
+ * exist are counted as duplicates rather than failing the batch, which is how
+ * repeated triggers are coalesced.
+ */
+public class TaskBatcher {
+
+	/**
+	 * Most tasks the queue accepts in a single add.
+	 */
+	public static final int MAX_BATCH = 100;
+
+	private final Queue queue;
+	private final List<TaskOptions> pending = new ArrayList<>();
+	private int added;
+	private int duplicates;
+
+	public TaskBatcher(Queue queue) {
+		this.queue = queue;
+	}
+
+	public TaskBatcher add(TaskOptions task) {
+		pending.add(task);
+		if(pending.size() >= MAX_BATCH)
+			flush();
+		return this;
+	}
+
+	public void flush() {
+		if(pending.isEmpty())
+			return;
+
+		try {
+			queue.add(pending);
+			added += pending.size();
+		} catch(TaskAlreadyExistsException e) {
+			// the rest of the batch is still added
+			duplicates += e.getTaskNames().size();
+			added += pending.size() - e.getTaskNames().size();
+		} finally {
+			pending.clear();
+		}
+	}
+
+	public int getAdded() {
+		return added;
+	}
+
+	public int getDuplicates() {
+		return duplicates;
+	}
+
+}
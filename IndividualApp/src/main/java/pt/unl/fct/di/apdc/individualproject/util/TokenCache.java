@@ -0,0 +1,138 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import com.google.cloud.datastore.Entity;
+
+/**
+ * Bounded, per-instance LRU cache of the Token entities, keyed by username.
+ * Entries are invalidated when this instance removes or rewrites the stored
+ * token, but other instances do not hear of it, so they only live for TTL
+ * seconds (5 by default) and never past the token's expiry. A cached token
+ * that does not match the one a client sends is read again before the
+ * client is turned away.
+ */
+public class TokenCache {
+
+	public static final int MAX_ENTRIES = 10000;
+	public static final String TTL = "individualproject.token.cache.ttl";
+
+	private static final TokenCache INSTANCE = new TokenCache(MAX_ENTRIES, Long.getLong(TTL, 5) * 1000);
+
+	private final Map<String, CachedToken> tokens;
+	private final long ttl;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public TokenCache(final int maxEntries, long ttl) {
+		this.ttl = ttl;
+		this.tokens = new LinkedHashMap<String, CachedToken>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedToken> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public static TokenCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the token of the given user, serving it from memory when possible
+	 * and falling back to the loader (a Datastore read) on a miss.
+	 * Returns null if the user has no token.
+	 */
+	public AuthToken get(String username, Supplier<Entity> loader) {
+		AuthToken token = lookup(username);
+		if(token != null) {
+			hits.incrementAndGet();
+			return token;
+		}
+		misses.incrementAndGet();
+
+		return load(username, loader);
+	}
+
+	/**
+	 * Like get, but a cached token the check rejects is read again through
+	 * the loader, since it may have been replaced or removed on another
+	 * instance.
+	 */
+	public AuthToken get(String username, Supplier<Entity> loader, Predicate<AuthToken> check) {
+		AuthToken token = lookup(username);
+		if(token != null && check.test(token)) {
+			hits.incrementAndGet();
+			return token;
+		}
+		misses.incrementAndGet();
+		return load(username, loader);
+	}
+
+	public synchronized void put(AuthToken token) {
+		long expiresAt = Math.min(token.expirationData, System.currentTimeMillis() + ttl);
+		tokens.put(token.username, new CachedToken(token, expiresAt));
+	}
+
+	public synchronized void invalidate(String username) {
+		tokens.remove(username);
+	}
+
+	public synchronized boolean contains(String username) {
+		CachedToken cached = tokens.get(username);
+		return cached != null && cached.expiresAt > System.currentTimeMillis();
+	}
+
+	public synchronized int size() {
+		return tokens.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private AuthToken load(String username, Supplier<Entity> loader) {
+		Entity entity = loader.get();
+		if(entity == null) {
+			invalidate(username);
+			return null;
+		}
+
+		AuthToken token = AuthToken.fromEntity(entity);
+		put(token);
+		return token;
+	}
+
+	private synchronized AuthToken lookup(String username) {
+		CachedToken cached = tokens.get(username);
+		if(cached == null)
+			return null;
+
+		if(cached.expiresAt <= System.currentTimeMillis()) {
+			tokens.remove(username);
+			return null;
+		}
+		return cached.token;
+	}
+
+	private static class CachedToken {
+		final AuthToken token;
+		final long expiresAt;
+
+		CachedToken(AuthToken token, long expiresAt) {
+			this.token = token;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+}
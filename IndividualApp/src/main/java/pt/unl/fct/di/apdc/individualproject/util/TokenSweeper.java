@@ -0,0 +1,117 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.datastore.Cursor;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyQuery;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+
+/**
+ * Deletes expired Token entities, then the expired Revocation entities of the
+ * signed token mode. A run walks a keys-only query on expirationData in
+ * batches of BATCH_SIZE, deleting each batch in a transaction that re-reads
+ * the entities, so a token replaced by a new login in the meantime is kept.
+ * After MAX_BATCHES the run stops and enqueues a task that resumes from its
+ * cursor CONTINUE_DELAY later, which keeps a large backlog from hogging an
+ * instance or the Datastore. A batch is retried while it is contended; if it
+ * still fails the run fails, so the queue retries its task from the same
+ * cursor instead of the batch being skipped.
+ */
+public class TokenSweeper {
+
+	public static final String[] KINDS = { "Token", "Revocation" };
+	public static final int BATCH_SIZE = 100;
+	public static final int MAX_BATCHES = 10;
+	public static final long CONTINUE_DELAY = 1000 * 5; //5s
+
+	private static final Logger LOG = Logger.getLogger(TokenSweeper.class.getName());
+	private static final TokenSweeper INSTANCE = new TokenSweeper(Storage.getDatastore());
+
+	private final Datastore datastore;
+	private final TransactionRunner transactions = TransactionRunner.getInstance();
+
+	public TokenSweeper(Datastore datastore) {
+		this.datastore = datastore;
+	}
+
+	public static TokenSweeper getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Sweeps entities of the given kind that expired before the given time,
+	 * starting at the cursor (null to start it), then those of the kinds after
+	 * it. Returns the number of entities deleted in this run.
+	 */
+	public int sweep(String kind, long before, String cursor) throws Exception {
+		int kindIndex = Arrays.asList(KINDS).indexOf(kind);
+		if(kindIndex < 0)
+			throw new IllegalArgumentException("Nothing to sweep of kind " + kind);
+
+		int deleted = 0;
+		Cursor start = cursor == null ? null : Cursor.fromUrlSafe(cursor);
+
+		for(int batch = 0; batch < MAX_BATCHES; batch++) {
+			KeyQuery.Builder query = Query.newKeyQueryBuilder()
+					.setKind(KINDS[kindIndex])
+					.setFilter(PropertyFilter.lt("expirationData", before))
+					.setLimit(BATCH_SIZE);
+			if(start != null)
+				query.setStartCursor(start);
+
+			QueryResults<Key> results = datastore.run(query.build());
+			List<Key> keys = new ArrayList<>(BATCH_SIZE);
+			while(results.hasNext())
+				keys.add(results.next());
+
+			if(!keys.isEmpty())
+				deleted += deleteExpired(keys, before);
+			start = results.getCursorAfter();
+
+			if(keys.size() < BATCH_SIZE) {
+				LOG.fine("Sweep of " + KINDS[kindIndex] + " done, " + deleted + " deleted in this run.");
+				if(++kindIndex == KINDS.length)
+					return deleted;
+				start = null;
+			}
+		}
+
+		TaskOptions task = TaskOptions.Builder.withUrl("/rest/utils/sweep/tokens")
+				.param("kind", KINDS[kindIndex])
+				.param("before", Long.toString(before))
+				.countdownMillis(CONTINUE_DELAY);
+		if(start != null)
+			task.param("cursor", start.toUrlSafe());
+		QueueFactory.getDefaultQueue().add(task);
+		LOG.fine("Sweep continues later at " + KINDS[kindIndex] + ", " + deleted + " deleted in this run.");
+		return deleted;
+	}
+
+	private int deleteExpired(List<Key> keys, long before) throws Exception {
+		// contention is most likely a login on one of these users, which the retry re-reads
+		return transactions.call(txn -> {
+			List<Key> expired = new ArrayList<>(keys.size());
+			for(Entity entity : txn.fetch(keys.toArray(new Key[0]))) {
+				if(entity != null && entity.getLong("expirationData") < before)
+					expired.add(entity.getKey());
+			}
+			if(expired.isEmpty())
+				return 0;
+
+			txn.delete(expired.toArray(new Key[0]));
+			txn.commit();
+			return expired.size();
+		});
+	}
+
+}
@@ -0,0 +1,128 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.function.Supplier;
+
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Transaction;
+
+/**
+ * Issues and verifies AuthTokens in one of two modes, chosen with the
+ * individualproject.token.mode system property:
+ * <ul>
+ * <li>datastore (default): tokens are random ids stored in the Token kind and
+ * looked up through the TokenCache;</li>
+ * <li>signed: tokens are HMAC-signed by TokenSigner and verified with CPU
+ * only, logout/disable/delete/role changes go through the RevocationList.</li>
+ * </ul>
+ */
+public class TokenVerifier {
+
+	public static final String MODE_PROPERTY = "individualproject.token.mode";
+	public static final String SECRET_PROPERTY = "individualproject.token.secret";
+	public static final String SIGNED = "signed";
+
+	private static final TokenVerifier INSTANCE = new TokenVerifier(System.getProperty(MODE_PROPERTY), System.getProperty(SECRET_PROPERTY));
+
+	private final TokenCache tokenCache = TokenCache.getInstance();
+	private final SharedCache sharedCache = SharedCache.getInstance();
+	private final TokenSigner signer;
+	private final RevocationList revocations;
+
+	public TokenVerifier(String mode, String secret) {
+		if(SIGNED.equals(mode)) {
+			this.signer = new TokenSigner(secret);
+			this.revocations = new RevocationList(Storage.getDatastore());
+		} else {
+			this.signer = null;
+			this.revocations = null;
+		}
+	}
+
+	public static TokenVerifier getInstance() {
+		return INSTANCE;
+	}
+
+	public boolean isSigned() {
+		return signer != null;
+	}
+
+	public AuthToken issue(String username, String role) {
+		AuthToken at = new AuthToken(username, role);
+		if(isSigned())
+			signer.sign(at);
+		return at;
+	}
+
+	/**
+	 * Returns the trusted version of the token sent by the client, or null if
+	 * it is not valid. The loader reads the stored token and is only used in
+	 * datastore mode, when neither this instance's cache nor memcache has it.
+	 */
+	public AuthToken verify(AuthToken at, Supplier<Entity> loader) {
+		if(isSigned()) {
+			if(signer.verify(at) && at.isValid(at.expirationData) && !revocations.isRevoked(at))
+				return at;
+			return null;
+		}
+
+		AuthToken token = tokenCache.get(at.username, () -> sharedCache.get(Storage.getKeys().tokenKey(at.username), loader),
+				stored -> matches(at, stored));
+		if(token != null && matches(at, token))
+			return token;
+		return null;
+	}
+
+	/**
+	 * Whether verifying this token will need the stored token, so that callers
+	 * can read it together with the rest of their entities. Not when memcache
+	 * is on, which usually has it.
+	 */
+	public boolean needsLookup(AuthToken at) {
+		return !isSigned() && !tokenCache.contains(at.username) && !sharedCache.isEnabled();
+	}
+
+	/**
+	 * Revokes a single token in the given transaction. Call loggedOut after
+	 * the transaction commits.
+	 */
+	public void revokeToken(Transaction txn, AuthToken at) {
+		if(isSigned())
+			txn.put(revocations.tokenRevocation(at));
+	}
+
+	public void loggedOut(AuthToken at) {
+		if(isSigned())
+			revocations.add(revocations.tokenRevocation(at));
+		else
+			tokenCache.invalidate(at.username);
+	}
+
+	/**
+	 * Revokes every token issued to a user so far in the given transaction.
+	 * Call userChanged after the transaction commits.
+	 */
+	public void revokeUser(Transaction txn, String username) {
+		if(isSigned())
+			txn.put(revocations.userRevocation(username));
+	}
+
+	public void userChanged(String username) {
+		if(isSigned())
+			revocations.add(revocations.userRevocation(username));
+		else
+			tokenCache.invalidate(username);
+	}
+
+	/**
+	 * Makes a freshly stored token known to this instance.
+	 */
+	public void loggedIn(AuthToken at) {
+		if(!isSigned())
+			tokenCache.put(at);
+	}
+
+	private static boolean matches(AuthToken at, AuthToken stored) {
+		return at.isValid(stored.expirationData) && at.tokenID.equals(stored.tokenID);
+	}
+
+}
@@ -0,0 +1,184 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Transaction;
+
+/**
+ * Runs a transaction body, retrying it with a fresh transaction when the
+ * Datastore aborts it because of contention (or fails with another retryable
+ * error before the commit). Retries back off exponentially with full jitter,
+ * so that clashing requests spread out instead of colliding again, and stop
+ * after MAX_ATTEMPTS or once DEADLINE would be exceeded. The body is run again
+ * from scratch, so it must not have side effects before its commit.
+ * <p>
+ * A commit that fails with anything but contention, such as UNAVAILABLE or
+ * DEADLINE_EXCEEDED, may still have been applied, and running the body again
+ * would then answer as if it had not. It is not retried but reported as
+ * CommitUnknownException.
+ */
+public class TransactionRunner {
+
+	public static final String MAX_ATTEMPTS = "individualproject.txn.attempts";
+	public static final String DEADLINE = "individualproject.txn.deadline";
+
+	private static final Logger LOG = Logger.getLogger(TransactionRunner.class.getName());
+	private static final long BASE_BACKOFF = 20;
+	private static final long MAX_BACKOFF = 1000;
+	private static final TransactionRunner INSTANCE = new TransactionRunner(Storage.getDatastore(),
+			Integer.getInteger(MAX_ATTEMPTS, 5), Long.getLong(DEADLINE, 3000));
+
+	private final Datastore datastore;
+	private final int maxAttempts;
+	private final long deadline;
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder givenUp = new LongAdder();
+
+	@FunctionalInterface
+	public interface Body<T> {
+		T run(Transaction txn) throws Exception;
+	}
+
+	/**
+	 * Thrown when a commit failed in a way that does not tell whether it was
+	 * applied.
+	 */
+	public static class CommitUnknownException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public CommitUnknownException(Throwable cause) {
+			super("Commit failed and may or may not have been applied", cause);
+		}
+	}
+
+	/**
+	 * Thrown when a transaction is still contended after the last retry.
+	 */
+	public static class ContentionException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public ContentionException(Throwable cause) {
+			super("Transaction gave up after repeated contention", cause);
+		}
+	}
+
+	public TransactionRunner(Datastore datastore, int maxAttempts, long deadline) {
+		this.datastore = datastore;
+		this.maxAttempts = maxAttempts;
+		this.deadline = deadline;
+	}
+
+	public static TransactionRunner getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Runs the body, retrying it on contention. Throws ContentionException
+	 * when it gives up, CommitUnknownException when the commit may have been
+	 * applied, and anything else the body throws as is.
+	 */
+	public <T> T call(Body<T> body) throws Exception {
+		long giveUpAt = System.currentTimeMillis() + deadline;
+		for(int attempt = 1; ; attempt++) {
+			AtomicBoolean committing = new AtomicBoolean();
+			Transaction txn = watchCommit(datastore.newTransaction(), committing);
+			try {
+				return body.run(txn);
+			} catch(DatastoreException e) {
+				if(!isContention(e) && committing.get()) {
+					if(e.isRetryable())
+						throw new CommitUnknownException(e);
+					throw e;
+				}
+				if(!isRetryable(e))
+					throw e;
+
+				long backoff = ThreadLocalRandom.current().nextLong(Math.min(MAX_BACKOFF, BASE_BACKOFF << attempt) + 1);
+				if(attempt >= maxAttempts || System.currentTimeMillis() + backoff > giveUpAt) {
+					givenUp.increment();
+					throw new ContentionException(e);
+				}
+				retries.increment();
+				DatastoreStats stats = DatastoreStats.current();
+				if(stats != null)
+					stats.retry();
+				Thread.sleep(backoff);
+			} finally {
+				if(txn.isActive()) {
+					try {
+						txn.rollback();
+					} catch(DatastoreException e) {
+						LOG.log(Level.FINE, "Rollback failed", e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs a request handler's transaction. Gives 503 with Retry-After when it
+	 * stays contended, its commit may not have been applied or the hashing pool
+	 * is saturated, and 500 if the body fails.
+	 */
+	public Response run(Body<Response> body) {
+		try {
+			return call(body);
+		} catch(ContentionException e) {
+			LOG.warning(e.getMessage() + ": " + e.getCause().getMessage());
+			return Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", 1).entity("Too much contention, try again later.").build();
+		} catch(CommitUnknownException e) {
+			LOG.warning(e.getMessage() + ": " + e.getCause().getMessage());
+			return Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", 1).entity("Could not confirm the change, check before trying again.").build();
+		} catch(RejectedExecutionException e) {
+			return AppExecutors.busy();
+		} catch(Exception e) {
+			LOG.log(Level.WARNING, "Transaction failed", e);
+			return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Something broke.").build();
+		}
+	}
+
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	public long getGivenUp() {
+		return givenUp.sum();
+	}
+
+	/**
+	 * ABORTED, which the Datastore answers when transactions on the same
+	 * entities clash, or 409 for the same over HTTP.
+	 */
+	public static boolean isContention(Throwable e) {
+		if(!(e instanceof DatastoreException))
+			return false;
+		DatastoreException de = (DatastoreException) e;
+		return de.getCode() == 10 || de.getCode() == 409 || "ABORTED".equals(de.getReason());
+	}
+
+	// tells the caller whether a failure came from the commit
+	private static Transaction watchCommit(Transaction txn, AtomicBoolean committing) {
+		return (Transaction) Proxy.newProxyInstance(Transaction.class.getClassLoader(), new Class<?>[] { Transaction.class },
+				(proxy, method, args) -> {
+					if(method.getName().equals("commit"))
+						committing.set(true);
+					return InstrumentedDatastore.invoke(txn, method, args);
+				});
+	}
+
+	private static boolean isRetryable(DatastoreException e) {
+		return isContention(e) || e.isRetryable();
+	}
+
+}
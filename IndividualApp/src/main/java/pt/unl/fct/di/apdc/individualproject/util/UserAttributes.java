@@ -0,0 +1,49 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Entity;
+
+/**
+ * The attributes of a user as returned by /user/attribute, taken from its
+ * User and Profile entities. The password hash is never included.
+ */
+public class UserAttributes {
+	
+	public String username;
+	public String email;
+	public String creation_timestamp;
+	public String profile;
+	public String role;
+	public String state;
+	public String landline;
+	public String mobilePhone;
+	public String address;
+	public String complementAddress;
+	public String locality;
+	
+	public UserAttributes() {}
+	
+	public static UserAttributes fromEntities(Entity user, Entity profile) {
+		UserAttributes attributes = new UserAttributes();
+		attributes.username = user.getKey().getName();
+		attributes.email = getString(user, "email");
+		Timestamp created = Schema.creationTime(user);
+		attributes.creation_timestamp = created != null ? Schema.formatLegacy(created) : null;
+		if(profile != null) {
+			attributes.profile = getString(profile, "profile");
+			attributes.role = getString(profile, "role");
+			attributes.state = getString(profile, "state");
+			attributes.landline = getString(profile, "landline");
+			attributes.mobilePhone = getString(profile, "mobilePhone");
+			attributes.address = getString(profile, "address");
+			attributes.complementAddress = getString(profile, "complementAddress");
+			attributes.locality = getString(profile, "locality");
+		}
+		return attributes;
+	}
+	
+	private static String getString(Entity entity, String name) {
+		return entity.contains(name) ? entity.getString(name) : null;
+	}
+
+}
@@ -0,0 +1,35 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class UserPage {
+	
+	public List<Entry> users = new ArrayList<>();
+	/**
+	 * Token for the next page, null on the last one.
+	 */
+	public String cursor;
+	
+	public UserPage() {}
+	
+	public static class Entry {
+		public String username;
+		public String role;
+		public String state;
+		public String profile;
+		public String locality;
+		
+		public Entry() {}
+		
+		public void set(String property, String value) {
+			switch(property) {
+			case "role": role = value; break;
+			case "state": state = value; break;
+			case "profile": profile = value; break;
+			case "locality": locality = value; break;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdmissionControlTest {
+
+	private final AdmissionControl admission = new AdmissionControl(true);
+
+	private static int fill(AdmissionControl admission, AdmissionControl.Endpoint endpoint) {
+		int admitted = 0;
+		while(admission.tryAcquire(endpoint))
+			admitted++;
+		return admitted;
+	}
+
+	@Test
+	public void rejectsOverTheLimit() {
+		AdmissionControl.Endpoint endpoint = admission.endpoint(AdmissionControl.COMPUTE);
+		assertEquals(10, fill(admission, endpoint));
+		AdmissionControl.Limiter limiter = endpoint.getLimiter();
+		assertEquals(10, limiter.getInFlight());
+		assertEquals(1, limiter.getRejected());
+	}
+
+	@Test
+	public void growsWhileHealthyAndBusy() {
+		AdmissionControl.Endpoint endpoint = admission.endpoint(AdmissionControl.COMPUTE);
+		int admitted = fill(admission, endpoint);
+		for(int i = 0; i < admitted; i++)
+			endpoint.release(1000, 200);
+		assertTrue(endpoint.getLimiter().getLimit() > 10);
+		assertEquals(0, endpoint.getLimiter().getInFlight());
+	}
+
+	@Test
+	public void shrinksOnErrorsAtMostOncePerInterval() {
+		AdmissionControl.Endpoint endpoint = admission.endpoint(AdmissionControl.COMPUTE);
+		int admitted = fill(admission, endpoint);
+		for(int i = 0; i < admitted; i++)
+			endpoint.release(1000, 500);
+		assertEquals(9, endpoint.getLimiter().getLimit());
+	}
+
+	@Test
+	public void shrinksWhenSlowerThanUsual() throws InterruptedException {
+		AdmissionControl.Endpoint endpoint = admission.endpoint(AdmissionControl.COMPUTE);
+		// enough samples for the usual latency to stop following new ones closely
+		for(int i = 0; i < 200; i++) {
+			admission.tryAcquire(endpoint);
+			endpoint.release(1000, 200);
+		}
+		int limit = endpoint.getLimiter().getLimit();
+		for(int i = 0; i < 30; i++) {
+			fill(admission, endpoint);
+			endpoint.release(100000, 200);
+			Thread.sleep(AdmissionControl.DECREASE_MILLIS / 10);
+		}
+		assertTrue(endpoint.getLimiter().getLimit() < limit);
+	}
+
+	@Test
+	public void idleLimitIsLeftAlone() {
+		AdmissionControl.Endpoint endpoint = admission.endpoint(AdmissionControl.COMPUTE);
+		assertTrue(admission.tryAcquire(endpoint));
+		endpoint.release(1000, 500);
+		assertEquals(10, endpoint.getLimiter().getLimit());
+	}
+
+	@Test
+	public void lowerClassesShedWhileAHigherOneDoes() {
+		AdmissionControl.Endpoint read = admission.endpoint(AdmissionControl.READ);
+		AdmissionControl.Endpoint write = admission.endpoint(AdmissionControl.WRITE);
+		fill(admission, read);
+		assertFalse(admission.tryAcquire(write));
+		assertEquals(0, write.getLimiter().getInFlight());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownClassIsRefused() {
+		admission.endpoint("nothing");
+	}
+
+}
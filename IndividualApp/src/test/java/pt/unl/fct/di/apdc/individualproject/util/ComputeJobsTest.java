@@ -0,0 +1,65 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.datastore.DatastoreOptions;
+
+public class ComputeJobsTest {
+
+	@BeforeClass
+	public static void offline() {
+		// ComputeJobs creates its instance on load, keep it off the default project
+		Storage.use(DatastoreOptions.newBuilder()
+				.setProjectId("test")
+				.setCredentials(NoCredentials.getInstance())
+				.build()
+				.getService());
+	}
+
+	private static long trialDivision(long lo, long hi) {
+		long count = 0;
+		for(long n = Math.max(lo, 2); n < hi; n++) {
+			boolean prime = true;
+			for(long d = 2; d * d <= n && prime; d++)
+				prime = n % d != 0;
+			if(prime)
+				count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void countsKnownRanges() {
+		assertEquals(0, ComputeJobs.countPrimes(0, 2));
+		assertEquals(1, ComputeJobs.countPrimes(2, 3));
+		assertEquals(25, ComputeJobs.countPrimes(0, 100));
+		assertEquals(78498, ComputeJobs.countPrimes(0, 1000000));
+	}
+
+	@Test
+	public void emptyRangesHaveNone() {
+		assertEquals(0, ComputeJobs.countPrimes(100, 100));
+		assertEquals(0, ComputeJobs.countPrimes(100, 50));
+	}
+
+	@Test
+	public void segmentsMatchTrialDivision() {
+		for(long lo = 0; lo < 20000; lo += 997)
+			assertEquals("from " + lo, trialDivision(lo, lo + 1500), ComputeJobs.countPrimes(lo, lo + 1500));
+		assertEquals(trialDivision(1000000000L, 1000002000L), ComputeJobs.countPrimes(1000000000L, 1000002000L));
+	}
+
+	@Test
+	public void chunksAddUp() {
+		JobData data = new JobData(0, 1000000, 7, JobData.LOCAL);
+		long total = 0;
+		for(int i = 0; i < data.chunks; i++)
+			total += ComputeJobs.countPrimes(data.chunkStart(i), data.chunkEnd(i));
+		assertEquals(78498, total);
+	}
+
+}
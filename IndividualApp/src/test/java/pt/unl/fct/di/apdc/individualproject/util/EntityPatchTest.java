@@ -0,0 +1,58 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.ValueType;
+
+public class EntityPatchTest {
+
+	private static Entity entity(String kind) {
+		return Entity.newBuilder(Key.newBuilder("test", kind, "alice").build())
+				.set("locality", "Lisboa")
+				.set("logins", 3)
+				.build();
+	}
+
+	@Test
+	public void sameValuesChangeNothing() {
+		Entity original = entity("Thing");
+		EntityPatch patch = new EntityPatch(original).set("locality", "Lisboa").set("logins", 3);
+		assertFalse(patch.isChanged());
+		assertSame(original, patch.build());
+	}
+
+	@Test
+	public void nullLeavesTheProperty() {
+		Entity original = entity("Thing");
+		EntityPatch patch = new EntityPatch(original).set("locality", (String) null);
+		assertFalse(patch.isChanged());
+		assertEquals("Lisboa", patch.build().getString("locality"));
+	}
+
+	@Test
+	public void changedValuesAreSet() {
+		EntityPatch patch = new EntityPatch(entity("Thing")).set("locality", "Porto").set("logins", 4).set("phone", "910000000");
+		assertTrue(patch.isChanged());
+		Entity patched = patch.build();
+		assertEquals("Porto", patched.getString("locality"));
+		assertEquals(4, patched.getLong("logins"));
+		assertEquals("910000000", patched.getString("phone"));
+	}
+
+	@Test
+	public void patchedEntitiesConformToTheSchema() {
+		Entity user = Entity.newBuilder(entity("User"))
+				.set(Schema.CREATION_TIMESTAMP, "01-02-2020 10:00:00")
+				.build();
+		Entity patched = new EntityPatch(user).set("locality", "Porto").build();
+		assertEquals(ValueType.TIMESTAMP, patched.getValue(Schema.CREATION_TIMESTAMP).getType());
+	}
+
+}
@@ -0,0 +1,53 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void emptyHistogramHasNoPercentiles() {
+		assertEquals(0, new LatencyHistogram().percentileMicros(0.99));
+	}
+
+	@Test
+	public void bucketsAreWithinAnEighth() {
+		Random random = new Random(42);
+		for(int i = 0; i < 100000; i++) {
+			long micros = i < 1000 ? i : random.nextLong() >>> (random.nextInt(40) + 24);
+			long upper = LatencyHistogram.upperBound(LatencyHistogram.bucket(micros));
+			assertTrue(micros + " <= " + upper, micros <= upper);
+			assertTrue(micros + " within 12.5% of " + upper, upper - micros <= micros / 8);
+		}
+	}
+
+	@Test
+	public void percentilesBoundTheirRank() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 1; i <= 1000; i++)
+			histogram.record(i);
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500500, histogram.getSumMicros());
+
+		long p50 = histogram.percentileMicros(0.5);
+		assertTrue("p50 " + p50, p50 >= 500 && p50 <= 500 * 9 / 8);
+		long p99 = histogram.percentileMicros(0.99);
+		assertTrue("p99 " + p99, p99 >= 990 && p99 <= 1000);
+		assertEquals(1000, histogram.percentileMicros(1));
+	}
+
+	@Test
+	public void outliersAreCappedAtTheMax() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(600000001);
+		assertEquals(0, histogram.percentileMicros(0.5));
+		assertEquals(600000001, histogram.percentileMicros(1));
+		assertEquals(600000001, histogram.getMaxMicros());
+	}
+
+}
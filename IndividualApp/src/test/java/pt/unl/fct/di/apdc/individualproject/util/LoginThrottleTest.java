@@ -0,0 +1,49 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LoginThrottleTest {
+
+	@Test
+	public void userBucketRunsOut() {
+		LoginThrottle throttle = new LoginThrottle(3, 60000, 100, 1, 1024);
+		for(int i = 0; i < 3; i++)
+			assertEquals(0, throttle.acquire("alice", "10.0.0." + i));
+		long wait = throttle.acquire("alice", "10.0.0.9");
+		assertTrue("wait " + wait, wait > 0 && wait <= 60000);
+		assertEquals(1, throttle.getRejectedByUser());
+		assertEquals(0, throttle.acquire("bob", "10.0.0.9"));
+	}
+
+	@Test
+	public void ipBucketRunsOut() {
+		LoginThrottle throttle = new LoginThrottle(100, 1, 2, 60000, 1024);
+		assertEquals(0, throttle.acquire("alice", "10.0.0.1"));
+		assertEquals(0, throttle.acquire("bob", "10.0.0.1"));
+		assertTrue(throttle.acquire("carol", "10.0.0.1") > 0);
+		assertEquals(1, throttle.getRejectedByIp());
+		assertEquals(0, throttle.acquire("carol", null));
+		assertEquals(3, throttle.getAllowed());
+	}
+
+	@Test
+	public void bucketsRefill() throws InterruptedException {
+		LoginThrottle throttle = new LoginThrottle(1, 20, 100, 1, 1024);
+		assertEquals(0, throttle.acquire("alice", null));
+		assertTrue(throttle.acquire("alice", null) > 0);
+		Thread.sleep(50);
+		assertEquals(0, throttle.acquire("alice", null));
+	}
+
+	@Test
+	public void bucketsAreBounded() {
+		LoginThrottle throttle = new LoginThrottle(3, 60000, 100, 1, 64);
+		for(int i = 0; i < 1000; i++)
+			throttle.acquire("user" + i, null);
+		assertTrue("size " + throttle.size(), throttle.size() <= 64);
+	}
+
+}
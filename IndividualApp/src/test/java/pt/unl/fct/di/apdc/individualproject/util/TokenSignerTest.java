@@ -0,0 +1,76 @@
+package pt.unl.fct.di.apdc.individualproject.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenSignerTest {
+
+	private static final String SECRET = "0123456789abcdef0123456789abcdef";
+
+	private final TokenSigner signer = new TokenSigner(SECRET);
+
+	private AuthToken signed() {
+		AuthToken at = new AuthToken("alice", UserData.USER);
+		signer.sign(at);
+		return at;
+	}
+
+	@Test
+	public void signedTokenVerifies() {
+		assertTrue(signer.verify(signed()));
+	}
+
+	@Test
+	public void tamperedRoleFails() {
+		AuthToken at = signed();
+		at.role = UserData.SUPER;
+		assertFalse(signer.verify(at));
+	}
+
+	@Test
+	public void tamperedUsernameFails() {
+		AuthToken at = signed();
+		at.username = "mallory";
+		assertFalse(signer.verify(at));
+	}
+
+	@Test
+	public void tamperedExpiryFails() {
+		AuthToken at = signed();
+		at.expirationData += AuthToken.EXPIRATION_TIME;
+		assertFalse(signer.verify(at));
+	}
+
+	@Test
+	public void tamperedIdFails() {
+		AuthToken at = signed();
+		at.tokenID = signed().tokenID;
+		assertFalse(signer.verify(at));
+	}
+
+	@Test
+	public void malformedSignatureFails() {
+		AuthToken at = signed();
+		at.signature = "not base64!";
+		assertFalse(signer.verify(at));
+		at.signature = "";
+		assertFalse(signer.verify(at));
+		at.signature = signed().signature.substring(1);
+		assertFalse(signer.verify(at));
+		at.signature = null;
+		assertFalse(signer.verify(at));
+	}
+
+	@Test
+	public void otherSecretFails() {
+		assertFalse(new TokenSigner(SECRET.toUpperCase()).verify(signed()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shortSecretIsRefused() {
+		new TokenSigner("too short");
+	}
+
+}